@@ -0,0 +1,68 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 性能测试使用的项目及样本数据
+ * 字段覆盖了主键、标题、正文、数值及自定义分词这几类常见的索引方式
+ */
+class XsBenchmarkProject implements AutoCloseable {
+    private static final String TITLE = "迅搜全文检索客户端性能测试 Xunsearch client benchmark";
+    private static final String BODY = "Xunsearch是一个高性能、全功能的全文检索解决方案，旨在帮助开发者针对海量数据快速建立搜索引擎。"
+            + "它采用结构化分层设计，包含后端索引、搜索服务程序和前端开发工具包，支持中文分词、拼音搜索、同义词、搜索建议及分面统计等功能。";
+
+    final XsStubServer stub;
+    final Xs xs;
+
+    XsBenchmarkProject() throws IOException {
+        this.stub = new XsStubServer();
+        // 超时设为0使连接保持同步阻塞模式，回放通道才能直接替换连接
+        this.xs = new Xs("project.name = benchmark\n"
+                + "server.index = " + this.stub.getConn() + "\n"
+                + "server.search = " + this.stub.getConn() + "\n"
+                + "server.timeout = 0\n"
+                + "[id]\ntype = id\n"
+                + "[title]\ntype = title\n"
+                + "[body]\ntype = body\n"
+                + "[price]\ntype = numeric\n"
+                + "[tags]\nindex = both\ntokenizer = split(,)\n");
+    }
+
+    /**
+     * 生成样本文档
+     * @param id 主键
+     * @param scale 正文的重复次数，用于构造不同大小的文档
+     * @return 文档
+     */
+    static XsDocument document(int id, int scale) {
+        XsDocument doc = new XsDocument((String) null, null);
+        doc.setField("id", String.valueOf(id));
+        doc.setField("title", TITLE + " " + id);
+        doc.setField("body", BODY.repeat(scale));
+        doc.setField("price", String.valueOf(id * 10 + 99));
+        doc.setField("tags", "迅搜,全文检索,Java,benchmark");
+        return doc;
+    }
+
+    /**
+     * 向替身服务端添加搜索结果文档
+     * @param count 文档数量
+     */
+    void addResults(int count) {
+        for (int i = 0; i < count; i++) {
+            Map<Integer, String> fields = new HashMap<>();
+            for (Map.Entry<String, String> field : document(i, 1).getFields().entrySet()) {
+                fields.put(this.xs.getField(field.getKey()).vno, field.getValue());
+            }
+            this.stub.addDocument(fields);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.xs.close();
+        this.stub.close();
+    }
+}
@@ -0,0 +1,50 @@
+package com.hangjiayun.infrastructure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 命令封包编码
+ * 小封包对应搜索及索引过程中的大多数指令，大封包对应文档正文及EXDATA
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XsCommandBenchmark {
+    @Param({"32", "16384"})
+    public int size;
+
+    private XsCommand cmd;
+
+    @Setup
+    public void setup() {
+        byte[] buf = "迅搜".repeat(this.size / 6 + 1).getBytes(StandardCharsets.UTF_8);
+        this.cmd = new XsCommand(XsCmd.XS_CMD_DOC_INDEX, 1, 3, ByteBuffer.wrap(buf, 0, this.size), ByteBuffer.wrap("benchmark".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public ByteBuffer toBytes() {
+        return this.cmd.toBytes();
+    }
+
+    @Benchmark
+    public String toStringPacket() {
+        return this.cmd.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package com.hangjiayun.infrastructure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 索引文档编码及缓冲区提交
+ * 服务端的确认响应由{@link XsReplayChannel}回放，测得的是客户端编码、缓冲及写出的耗时
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XsIndexBenchmark {
+    /**
+     * 正文重复次数，1约为350字节，20约为7KB
+     */
+    @Param({"1", "20"})
+    public int scale;
+
+    private XsBenchmarkProject project;
+    private XsIndex index;
+    private XsDocument doc;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.project = new XsBenchmarkProject();
+        this.index = new XsIndex(this.project.stub.getConn(), this.project.xs);
+        this.doc = XsBenchmarkProject.document(1, this.scale);
+        // 添加文档及提交缓冲区得到的都是XS_CMD_OK_RQST_FINISHED，录制一次即可供两者回放
+        this.index.update(this.doc);
+        XsReplayChannel.record(this.index, () -> this.index.update(this.doc));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.index.close(true);
+        this.project.close();
+    }
+
+    /**
+     * 单个文档的编码及提交
+     */
+    @Benchmark
+    public XsIndex update() {
+        return this.index.update(this.doc);
+    }
+
+    /**
+     * 开启缓冲区连续添加batch个文档后提交，缓冲区足够大，期间不会触发提交
+     * 追加缓冲区的耗时与已缓冲的数据量无关时，平均耗时与batch成正比
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public XsIndex appendBuffer(Batch batch) {
+        this.index.openBuffer(256);
+        for (XsDocument doc : batch.docs) {
+            this.index.update(doc);
+        }
+        return this.index.closeBuffer();
+    }
+
+    /**
+     * 批量添加的文档
+     */
+    @State(Scope.Thread)
+    public static class Batch {
+        /**
+         * 每次开启缓冲区后添加的文档数
+         */
+        @Param({"100", "1000"})
+        public int batch;
+
+        private XsDocument[] docs;
+
+        @Setup(Level.Trial)
+        public void setup(XsIndexBenchmark benchmark) {
+            this.docs = new XsDocument[this.batch];
+            for (int i = 0; i < this.batch; i++) {
+                this.docs[i] = XsBenchmarkProject.document(i + 1, benchmark.scale);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * 回放录制的响应数据的通道
+ * 写入的数据直接丢弃，读取时循环返回录制的响应字节流，每次读取不会跨越两轮录制数据的边界，
+ * 用于在性能测试中排除网络及服务端的开销，只测量客户端编码及解析的耗时
+ */
+class XsReplayChannel implements ByteChannel, GatheringByteChannel {
+    private final ByteBuffer data;
+    private boolean open = true;
+
+    XsReplayChannel(byte[] data) {
+        if (data.length == 0) {
+            throw new XsException("Nothing recorded to replay");
+        }
+        this.data = ByteBuffer.wrap(data);
+    }
+
+    /**
+     * 录制一次操作收到的响应数据，之后将连接替换为回放该数据的通道
+     * 原连接会被关闭，因此录制前应先执行一次相同的操作，以免录入只在首次出现的请求（如项目字段设置）的响应
+     * @param server 已连接的服务端对象，需要使用同步阻塞模式（即超时设为0）
+     * @param action 要录制的操作
+     * @return 替换后的回放通道
+     */
+    static XsReplayChannel record(XsServer server, Runnable action) {
+        Recorder recorder = new Recorder((ByteChannel) server.channel);
+        server.channel = recorder;
+        try {
+            action.run();
+        } finally {
+            server.channel = recorder.channel;
+        }
+        XsReplayChannel replay = new XsReplayChannel(recorder.received.toByteArray());
+        try {
+            recorder.channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        server.channel = replay;
+        return replay;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (!this.data.hasRemaining()) {
+            this.data.rewind();
+        }
+        int len = Math.min(dst.remaining(), this.data.remaining());
+        dst.put(this.data.slice().limit(len));
+        this.data.position(this.data.position() + len);
+        return len;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int len = src.remaining();
+        src.position(src.limit());
+        return len;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        long len = 0;
+        for (int i = offset; i < offset + length; i++) {
+            len += this.write(srcs[i]);
+        }
+        return len;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+        return this.write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public void close() {
+        this.open = false;
+    }
+
+    /**
+     * 录制通道，将读取到的数据复制一份后原样返回
+     */
+    private static class Recorder implements ByteChannel, GatheringByteChannel {
+        private final ByteChannel channel;
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        Recorder(ByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int start = dst.position();
+            int num = this.channel.read(dst);
+            for (int i = start; i < dst.position(); i++) {
+                this.received.write(dst.get(i));
+            }
+            return num;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return this.channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return ((GatheringByteChannel) this.channel).write(srcs, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return this.write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
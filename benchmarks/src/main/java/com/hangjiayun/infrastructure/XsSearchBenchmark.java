@@ -0,0 +1,90 @@
+package com.hangjiayun.infrastructure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 搜索语句预处理及搜索结果解析
+ * 搜索结果的响应数据先从替身服务端录制，之后由{@link XsReplayChannel}循环回放
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XsSearchBenchmark {
+    private static final String QUERY = "迅搜 全文检索 title:客户端 tags:Java price:100..200";
+
+    private XsBenchmarkProject project;
+    private XsSearch search;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.project = new XsBenchmarkProject();
+        this.search = new XsSearch(this.project.stub.getConn(), this.project.xs);
+        // 首次预处理会缓冲字段设置等指令，先执行一次搜索将其发出
+        this.search.search(QUERY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.search.close();
+        this.project.close();
+    }
+
+    @Benchmark
+    public String preQueryString() {
+        return this.search.preQueryString(QUERY);
+    }
+
+    @Benchmark
+    public List<XsDocument> search(Results state) {
+        return state.search.setLimit(state.results, 0).search(QUERY);
+    }
+
+    /**
+     * 回放搜索结果的连接
+     */
+    @State(Scope.Thread)
+    public static class Results {
+        /**
+         * 每页的结果文档数
+         */
+        @Param({"10", "100"})
+        public int results;
+
+        private XsBenchmarkProject project;
+        private XsSearch search;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            this.project = new XsBenchmarkProject();
+            this.project.addResults(this.results);
+            this.search = new XsSearch(this.project.stub.getConn(), this.project.xs);
+            this.search.setLimit(this.results, 0).search(QUERY);
+            XsReplayChannel.record(this.search, () -> this.search.setLimit(this.results, 0).search(QUERY));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.search.close(true);
+            this.project.close();
+        }
+    }
+}
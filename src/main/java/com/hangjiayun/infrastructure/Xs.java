@@ -5,10 +5,11 @@ import java.io.File;
 import java.io.FileReader;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class Xs extends XsComponent{
+public class Xs extends XsComponent implements AutoCloseable{
     /**
      * 索引操作对象
      */
@@ -17,6 +18,14 @@ public class Xs extends XsComponent{
      * 搜索操作对象
      */
     private XsSearch xsSearch;
+    /**
+     * 索引服务端连接池
+     */
+    private XsServerPool<XsIndex> indexPool;
+    /**
+     * 搜索服务端负载均衡，每个服务端一个连接池
+     */
+    private XsBalancer<XsSearch> searchBalancer;
     /**
      * scws分词服务器
      */
@@ -126,49 +135,56 @@ public class Xs extends XsComponent{
 
     /**
      * 获取索引操作对象
+     * 每个项目只有一个，首次调用时建立连接，连接断开后再次调用时重新建立；多线程环境下请改用{@link #borrowIndex()}
      * @return 索引操作对象
      */
-    public XsIndex getIndex() {
-        if (this.xsIndex == null) {
-            ArrayList<String> adds = new ArrayList<>();
-            String conn = this.config.containsKey("server.index") ? (String) this.config.get("server.index") : "8383";
-            String[] connArr = conn.split(";");
-            if (connArr.length >= 1) {
-                conn = connArr[0];
-            }
-            this.xsIndex = new XsIndex(conn, this);
-            this.xsIndex.setTimeout(0);
-            for (int i=1;i<connArr.length;i++) {
-                conn = connArr[i].trim();
-                if (!conn.isEmpty() && !conn.isBlank()) {
-                    this.xsIndex.addServer(conn).setTimeout(0);
-                }
-            }
+    public synchronized XsIndex getIndex() {
+        if (this.xsIndex == null || !this.xsIndex.isConnected()) {
+            this.xsIndex = this.createIndex();
         }
         return this.xsIndex;
     }
 
-    public XsSearch getSearch() {
-        if (this.xsSearch == null) {
-            ArrayList<String> conns = new ArrayList<>(10);
-            if (!this.config.containsKey("server.search")) {
-                conns.add("8384");
-            } else {
-                for (String conn : ((String)this.config.get("server.search")).split(";")) {
-                    if (!conn.isBlank()) {
-                        conns.add(conn);
-                    }
-                }
-            }
+    /**
+     * 借出索引操作对象
+     * 从索引服务端连接池中借出一个连接，使用完毕后请调用其close()方法归还
+     * @return 索引操作对象
+     */
+    public XsIndex borrowIndex() {
+        return this.getIndexPool().borrow();
+    }
+
+    /**
+     * 获取索引服务端连接池
+     * 连接池参数可通过项目配置中的server.index.pool_min、server.index.pool_max、server.index.pool_wait（毫秒）、server.index.pool_idle（秒）、server.index.pool_keepalive（秒）进行设置，
+     * 配置了多个索引服务端（以分号分隔）时，第一个为主服务端，其余为同步服务端，可通过server.index.consistency（all、primary、quorum）及server.index.replica_queue设置等待方式及队列长度
+     * @return 索引服务端连接池
+     */
+    public synchronized XsServerPool<XsIndex> getIndexPool() {
+        if (this.indexPool == null) {
+            this.indexPool = this.createPool("server.index", this::createIndex);
+        }
+        return this.indexPool;
+    }
+
+    /**
+     * 获取搜索操作对象
+     * 每个项目只有一个，首次调用时建立连接，配置了多个搜索服务端时随机选择一个可连接的服务端，连接断开后再次调用时重新建立；
+     * 多线程环境下请改用{@link #borrowSearch()}
+     * @return 搜索操作对象
+     */
+    public synchronized XsSearch getSearch() {
+        if (this.xsSearch == null || !this.xsSearch.isConnected()) {
+            List<String> conns = this.getSearchConns();
             if (conns.size() > 1) {
                 Collections.shuffle(conns);
             }
-            for (int i = 0; i<conns.size(); i++) {
+            for (int i = 0; i < conns.size(); i++) {
                 try {
-                    this.xsSearch = new XsSearch(conns.get(i), this);
-                    this.xsSearch.setCharset(this.getDefaultCharset());
+                    this.xsSearch = this.createSearch(conns.get(i));
+                    break;
                 } catch (XsException e) {
-                    if (conns.size() == (i+1)) {
+                    if (conns.size() == (i + 1)) {
                         throw e;
                     }
                 }
@@ -177,6 +193,162 @@ public class Xs extends XsComponent{
         return this.xsSearch;
     }
 
+    /**
+     * 借出搜索操作对象
+     * 配置了多个搜索服务端（以分号分隔）时，从当前耗时及出错率最低的服务端的连接池中借出一个连接，使用完毕后请调用其close()方法归还
+     * @return 搜索操作对象
+     */
+    public XsSearch borrowSearch() {
+        return this.getSearchBalancer().borrow();
+    }
+
+    /**
+     * 获取搜索服务端负载均衡
+     * 各服务端连接池的参数可通过项目配置中的server.search.pool_min、server.search.pool_max、server.search.pool_wait（毫秒）、server.search.pool_idle（秒）、server.search.pool_keepalive（秒）进行设置，
+     * 熔断条件可通过server.search.breaker_failures（连续出错次数）、server.search.breaker_timeout（冷却秒数）进行设置
+     * @return 搜索服务端负载均衡
+     */
+    public synchronized XsBalancer<XsSearch> getSearchBalancer() {
+        if (this.searchBalancer == null) {
+            this.searchBalancer = new XsBalancer<>(this.getSearchConns(), this::createSearch, factory -> this.createPool("server.search", factory))
+                    .setBreaker(this.getConfigInt("server.search.breaker_failures", 3), this.getConfigInt("server.search.breaker_timeout", 5) * 1000L);
+        }
+        return this.searchBalancer;
+    }
+
+    private List<String> getSearchConns() {
+        ArrayList<String> conns = new ArrayList<>(10);
+        if (!this.config.containsKey("server.search")) {
+            conns.add("8384");
+        } else {
+            for (String conn : ((String)this.config.get("server.search")).split(";")) {
+                if (!conn.isBlank()) {
+                    conns.add(conn.trim());
+                }
+            }
+        }
+        return conns;
+    }
+
+    /**
+     * 关闭索引及搜索操作对象和所有连接池
+     */
+    @Override
+    public synchronized void close() {
+        if (this.xsIndex != null) {
+            this.xsIndex.close();
+            this.xsIndex = null;
+        }
+        if (this.xsSearch != null) {
+            this.xsSearch.close();
+            this.xsSearch = null;
+        }
+        if (this.indexPool != null) {
+            this.indexPool.close();
+            this.indexPool = null;
+        }
+        if (this.searchBalancer != null) {
+            this.searchBalancer.close();
+            this.searchBalancer = null;
+        }
+    }
+
+    private <T extends XsServer> XsServerPool<T> createPool(String prefix, Supplier<T> factory) {
+        return new XsServerPool<>(factory, this.getConfigInt(prefix + ".pool_max", 8))
+                .setMinSize(this.getConfigInt(prefix + ".pool_min", 0))
+                .setMaxWait(this.getConfigInt(prefix + ".pool_wait", 3000))
+                .setIdleTimeout(this.getConfigInt(prefix + ".pool_idle", 60) * 1000L)
+                .setKeepAlive(this.getConfigInt(prefix + ".pool_keepalive", 0) * 1000L);
+    }
+
+    private XsIndex createIndex() {
+        String conn = this.config.containsKey("server.index") ? (String) this.config.get("server.index") : "8383";
+        String[] connArr = conn.split(";");
+        if (connArr.length >= 1) {
+            conn = connArr[0];
+        }
+        XsIndex xsIndex = new XsIndex(conn, this);
+        xsIndex.setTimeout(0);
+        xsIndex.setReplicaQueueSize(this.getConfigInt("server.index.replica_queue", 1024));
+        String consistency = (String) this.config.getOrDefault("server.index.consistency", "all");
+        switch (consistency.trim().toLowerCase()) {
+            case "all":
+                xsIndex.setConsistency(XsIndex.CONSISTENCY_ALL);
+                break;
+            case "primary":
+                xsIndex.setConsistency(XsIndex.CONSISTENCY_PRIMARY);
+                break;
+            case "quorum":
+                xsIndex.setConsistency(XsIndex.CONSISTENCY_QUORUM);
+                break;
+            default:
+                throw new XsException("Invalid server.index.consistency: " + consistency);
+        }
+        for (int i=1;i<connArr.length;i++) {
+            conn = connArr[i].trim();
+            if (!conn.isEmpty() && !conn.isBlank()) {
+                xsIndex.addServer(conn).setTimeout(0);
+            }
+        }
+        return xsIndex;
+    }
+
+    private XsSearch createSearch(String conn) {
+        XsSearch xsSearch = new XsSearch(conn, this);
+        xsSearch.setCharset(this.getDefaultCharset());
+        xsSearch.setPipelineWindow(Math.max(1, this.getConfigInt("server.search.pipeline_window", 1)));
+        return xsSearch;
+    }
+
+    /**
+     * 获取服务端连接的套接字参数
+     * 依次读取项目配置中的prefix.xxx及server.xxx配置项：connect_timeout、timeout（毫秒）、tcp_nodelay、keepalive（yes/no）、send_buffer、recv_buffer（字节）
+     * @param prefix 配置项前缀，如server.search、server.index
+     * @return 套接字参数
+     */
+    public XsSocketOptions getSocketOptions(String prefix) {
+        XsSocketOptions options = new XsSocketOptions();
+        return options.setConnectTimeout(this.getConfigInt(prefix + ".connect_timeout", this.getConfigInt("server.connect_timeout", options.getConnectTimeout())))
+                .setTimeout(this.getConfigInt(prefix + ".timeout", this.getConfigInt("server.timeout", options.getTimeout())))
+                .setTcpNoDelay(this.getConfigBool(prefix + ".tcp_nodelay", this.getConfigBool("server.tcp_nodelay", options.isTcpNoDelay())))
+                .setKeepAlive(this.getConfigBool(prefix + ".keepalive", this.getConfigBool("server.keepalive", options.isKeepAlive())))
+                .setSendBufferSize(this.getConfigInt(prefix + ".send_buffer", this.getConfigInt("server.send_buffer", 0)))
+                .setReceiveBufferSize(this.getConfigInt(prefix + ".recv_buffer", this.getConfigInt("server.recv_buffer", 0)));
+    }
+
+    /**
+     * 读取整数类型的配置项
+     * @param key 配置名
+     * @param def 配置不存在或格式不正确时的默认值
+     * @return 配置值
+     */
+    private int getConfigInt(String key, int def) {
+        Object value = this.config.get(key);
+        if (!(value instanceof String)) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(((String) value).trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /**
+     * 读取布尔类型的配置项
+     * @param key 配置名
+     * @param def 配置不存在时的默认值
+     * @return 配置值为yes、on、true或1时返回true
+     */
+    private boolean getConfigBool(String key, boolean def) {
+        Object value = this.config.get(key);
+        if (!(value instanceof String)) {
+            return def;
+        }
+        String str = ((String) value).trim().toLowerCase();
+        return str.equals("yes") || str.equals("on") || str.equals("true") || str.equals("1");
+    }
+
     public String getName() {
         return (String)this.config.get("project.name");
     }
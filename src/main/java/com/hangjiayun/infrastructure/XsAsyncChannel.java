@@ -0,0 +1,347 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 注册在{@link XsEventLoop}上的异步连接
+ * 服务端按命令的发送顺序依次返回响应，因此这里用先进先出的队列把响应包依次交给对应的请求处理，
+ * 窗口大于1时多个请求可以连续发送而无需等待前一个请求的响应（流水线模式）
+ * 除{@link #submit}和{@link #close}外，所有方法都只在所属的事件循环线程中调用
+ */
+class XsAsyncChannel {
+    private final SocketChannel channel;
+    private final XsEventLoop.Worker worker;
+    private SelectionKey key;
+    /**
+     * 等待发送的请求
+     */
+    private final ArrayDeque<Request<?>> queued = new ArrayDeque<>();
+    /**
+     * 已经发送、等待响应的请求
+     */
+    private final ArrayDeque<Request<?>> inflight = new ArrayDeque<>();
+    /**
+     * 等待写入通道的数据
+     */
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    /**
+     * 没有请求认领的响应包，比如多包响应中同步读取时尚未调用{@link XsServer#getRespond}的部分
+     */
+    private final ArrayDeque<XsCommand> unclaimed = new ArrayDeque<>();
+    private final XsFrameDecoder decoder;
+    private boolean closing = false;
+    /**
+     * 允许同时处于已发送状态的请求数量，即流水线窗口大小
+     */
+    private int window = 1;
+    /**
+     * 等待响应的超时纳秒数，小于等于0表示不限制
+     */
+    private long timeout = 0;
+    private volatile XsException failure;
+
+    XsAsyncChannel(SocketChannel channel, XsEventLoop.Worker worker, XsFrameDecoder decoder) {
+        this.channel = channel;
+        this.worker = worker;
+        this.decoder = decoder;
+    }
+
+    /**
+     * 响应处理器
+     * @param <T> 处理结果类型
+     */
+    interface Handler<T> {
+        /**
+         * 处理一个响应包，响应包的数据只在本次调用期间有效
+         * @param res 响应包
+         * @return 响应已经完整时返回true，还需要更多响应包时返回false
+         */
+        boolean onRespond(XsCommand res);
+
+        /**
+         * 获取处理结果，在{@link #onRespond}返回true后调用
+         * @return 处理结果
+         */
+        T getResult();
+    }
+
+    /**
+     * 创建只接收单个响应包的处理器
+     * @return 处理器，其结果为收到的响应包
+     */
+    static Handler<XsCommand> single() {
+        return new Handler<>() {
+            private XsCommand res;
+
+            @Override
+            public boolean onRespond(XsCommand res) {
+                this.res = res.copy();
+                return true;
+            }
+
+            @Override
+            public XsCommand getResult() {
+                return this.res;
+            }
+        };
+    }
+
+    /**
+     * 提交请求
+     * @param data 要依次发送的数据块，为null表示不发送数据，只接收下一个响应
+     * @param handler 响应处理器
+     * @return 响应处理完毕后完成的Future
+     */
+    <T> CompletableFuture<T> submit(ByteBuffer[] data, Handler<T> handler) {
+        Request<T> request = new Request<>(data, handler);
+        XsException failure = this.failure;
+        if (failure == null && this.worker.isShutdown()) {
+            failure = new XsException("Event loop has been closed");
+        }
+        if (failure != null) {
+            request.future.completeExceptionally(failure);
+        } else {
+            this.worker.execute(this, () -> this.enqueue(request));
+        }
+        return request.future;
+    }
+
+    /**
+     * 发送完剩余数据后关闭连接，所有尚未完成的请求都将失败
+     * @param last 关闭前最后发送的数据块
+     */
+    void close(ByteBuffer[] last) {
+        this.worker.execute(this, () -> {
+            if (this.failure != null) {
+                return;
+            }
+            this.closing = true;
+            Collections.addAll(this.outbound, last);
+            this.flush();
+            if (this.outbound.isEmpty()) {
+                this.fail(new XsException("Connection closed"));
+            }
+        });
+    }
+
+    /**
+     * 设置流水线窗口大小
+     * @param window 允许同时等待响应的请求数量，1表示逐个请求、等待响应后再发送下一个
+     */
+    void setWindow(int window) {
+        if (window < 1) {
+            throw new XsException("Invalid pipeline window: " + window);
+        }
+        this.worker.execute(this, () -> {
+            this.window = window;
+            this.pump();
+        });
+    }
+
+    /**
+     * 设置等待响应的超时时间
+     * 最早发出的请求超过该时间仍未收到完整响应时，连接将被关闭，所有未完成的请求都将失败
+     * @param millis 毫秒数，小于等于0表示不限制
+     */
+    void setTimeout(int millis) {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(millis);
+        this.worker.execute(this, () -> this.timeout = timeout);
+    }
+
+    /**
+     * 检查最早发出的请求是否已经超时，由事件循环线程定时调用
+     * @param now 当前时间
+     */
+    void checkTimeout(long now) {
+        Request<?> request = this.inflight.peek();
+        if (this.timeout > 0 && request != null && now - request.sentAt > this.timeout) {
+            this.fail(new XsException("Failed to recv the data from server completely REASON: timeout"));
+        }
+    }
+
+    boolean isOpen() {
+        return this.failure == null && this.channel.isOpen();
+    }
+
+    void register() {
+        try {
+            this.key = this.channel.register(this.worker.selector, SelectionKey.OP_READ, this);
+            XsCommand res;
+            while ((res = this.decoder.next()) != null) {
+                this.unclaimed.add(res.copy());
+            }
+        } catch (ClosedChannelException e) {
+            this.fail(new XsException("Broken server connection"));
+        }
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                this.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                this.flush();
+            }
+        } catch (CancelledKeyException e) {
+            this.fail(new XsException("Broken server connection"));
+        }
+    }
+
+    private void enqueue(Request<?> request) {
+        if (this.failure != null || this.closing) {
+            request.future.completeExceptionally(this.failure != null ? this.failure : new XsException("Connection closed"));
+            return;
+        }
+        this.queued.add(request);
+        this.pump();
+    }
+
+    /**
+     * 在窗口允许的范围内把等待中的请求转为已发送状态
+     * 多个请求的数据会合并为一次写入
+     */
+    private void pump() {
+        boolean sent = false;
+        while (this.inflight.size() < this.window && !this.queued.isEmpty()) {
+            Request<?> request = this.queued.poll();
+            request.sentAt = System.nanoTime();
+            this.inflight.add(request);
+            if (request.data != null) {
+                Collections.addAll(this.outbound, request.data);
+                sent = true;
+            }
+            while (!this.unclaimed.isEmpty() && !this.inflight.isEmpty()) {
+                this.dispatch(this.unclaimed.poll());
+            }
+        }
+        if (sent) {
+            this.flush();
+        }
+    }
+
+    private void flush() {
+        if (this.failure != null) {
+            return;
+        }
+        try {
+            while (!this.outbound.isEmpty()) {
+                if (this.outbound.size() == 1) {
+                    this.channel.write(this.outbound.peek());
+                } else {
+                    this.channel.write(this.outbound.toArray(new ByteBuffer[0]));
+                }
+                while (!this.outbound.isEmpty() && !this.outbound.peek().hasRemaining()) {
+                    this.outbound.poll();
+                }
+                if (!this.outbound.isEmpty()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            this.fail(new XsException("Failed to send the data to server completely REASON:" + e.getMessage(), e));
+            return;
+        }
+        if (this.closing && this.outbound.isEmpty()) {
+            this.fail(new XsException("Connection closed"));
+            return;
+        }
+        if (this.key != null && this.key.isValid()) {
+            this.key.interestOps(this.outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void read() {
+        int num;
+        try {
+            num = this.decoder.readFrom(this.channel);
+        } catch (IOException e) {
+            this.fail(new XsException("Failed to recv the data from server completely REASON:" + e.getMessage(), e));
+            return;
+        }
+        if (num < 0) {
+            this.fail(new XsException("Failed to recv the data from server completely REASON: closed"));
+            return;
+        }
+        XsCommand res;
+        try {
+            while ((res = this.decoder.next()) != null) {
+                this.dispatch(res);
+            }
+        } catch (XsException e) {
+            this.fail(e);
+            return;
+        }
+        this.pump();
+    }
+
+    private void dispatch(XsCommand res) {
+        Request<?> request = this.inflight.peek();
+        if (request == null) {
+            this.unclaimed.add(res.copy());
+            return;
+        }
+        try {
+            if (request.handler.onRespond(res)) {
+                this.inflight.poll();
+                request.complete();
+            }
+        } catch (RuntimeException e) {
+            this.inflight.poll();
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 关闭连接并让所有未完成的请求失败
+     * @param e 失败原因
+     */
+    void fail(XsException e) {
+        if (this.failure != null) {
+            return;
+        }
+        this.failure = e;
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        try {
+            this.channel.close();
+        } catch (IOException ignored) {
+        }
+        for (Request<?> request : this.inflight) {
+            request.future.completeExceptionally(e);
+        }
+        for (Request<?> request : this.queued) {
+            request.future.completeExceptionally(e);
+        }
+        this.inflight.clear();
+        this.queued.clear();
+        this.outbound.clear();
+        this.unclaimed.clear();
+    }
+
+    private static class Request<T> {
+        final ByteBuffer[] data;
+        final Handler<T> handler;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        long sentAt;
+
+        Request(ByteBuffer[] data, Handler<T> handler) {
+            this.data = data;
+            this.handler = handler;
+        }
+
+        void complete() {
+            this.future.complete(this.handler.getResult());
+        }
+    }
+}
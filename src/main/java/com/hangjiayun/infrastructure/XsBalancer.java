@@ -0,0 +1,320 @@
+package com.hangjiayun.infrastructure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 多服务端负载均衡
+ * 每个服务端节点拥有独立的连接池，并统计该节点请求耗时及出错率的指数加权移动平均值（EWMA），
+ * 借出连接时总是选择当前评分最好的节点，连接失败时自动切换到下一个节点
+ * 节点连续出错达到阈值后熔断，熔断期间不再分配新的请求，冷却时间过后放行一个探测请求，成功则恢复，失败则继续熔断
+ * @param <T> 连接类型，如{@link XsSearch}
+ */
+public class XsBalancer<T extends XsServer> implements AutoCloseable {
+    /**
+     * 熔断状态（常量）
+     */
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+
+    private final List<Node<T>> nodes;
+    /**
+     * EWMA的平滑系数，越大越看重最近的请求
+     */
+    private double alpha = 0.2;
+    /**
+     * 节点空闲时耗时统计的衰减时间常数（纳秒），使变慢的节点在一段时间后能重新获得请求
+     */
+    private long decayNanos = TimeUnit.SECONDS.toNanos(10);
+    /**
+     * 触发熔断的连续出错次数
+     */
+    private int failureThreshold = 3;
+    /**
+     * 熔断后放行探测请求前的冷却时间（纳秒）
+     */
+    private long openNanos = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * @param conns 各节点的连接字符串
+     * @param factory 根据连接字符串创建连接的工厂，返回的连接必须已经完成连接及项目绑定
+     * @param pools 根据连接工厂创建连接池的工厂，每个节点一个连接池
+     */
+    public XsBalancer(List<String> conns, Function<String, T> factory, Function<Supplier<T>, XsServerPool<T>> pools) {
+        if (conns.isEmpty()) {
+            throw new XsException("No server to balance");
+        }
+        ArrayList<Node<T>> nodes = new ArrayList<>(conns.size());
+        for (String conn : conns) {
+            nodes.add(new Node<>(this, conn, factory, pools));
+        }
+        this.nodes = Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * 设置EWMA的平滑系数
+     * @param alpha 0到1之间，默认为0.2
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsBalancer<T> setAlpha(double alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new XsException("Invalid EWMA alpha: " + alpha);
+        }
+        this.alpha = alpha;
+        return this;
+    }
+
+    /**
+     * 设置耗时统计的衰减时间
+     * 节点在该时间内没有新的请求时，其耗时统计会衰减为原来的约1/e
+     * @param millis 毫秒数，默认为10秒
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsBalancer<T> setDecayTime(long millis) {
+        this.decayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, millis));
+        return this;
+    }
+
+    /**
+     * 设置熔断条件
+     * @param failures 触发熔断的连续出错次数，默认为3
+     * @param millis 熔断后放行探测请求前的冷却毫秒数，默认为5秒
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsBalancer<T> setBreaker(int failures, long millis) {
+        this.failureThreshold = Math.max(1, failures);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+        return this;
+    }
+
+    /**
+     * 借出一个连接
+     * 按评分从好到差依次尝试各个可用节点，全部节点都已熔断时仍会按熔断先后依次尝试，而不是直接失败
+     * @return 已绑定项目的连接，使用完毕后请调用其close()方法归还
+     */
+    public T borrow() {
+        ArrayList<Node<T>> open = new ArrayList<>(0);
+        RuntimeException last = null;
+        for (Node<T> node : this.rank(open)) {
+            if (!node.acquire()) {
+                continue;
+            }
+            try {
+                return node.pool.borrow();
+            } catch (RuntimeException e) {
+                last = e;
+            }
+        }
+        if (last == null) {
+            for (Node<T> node : open) {
+                try {
+                    return node.pool.borrow();
+                } catch (RuntimeException e) {
+                    last = e;
+                }
+            }
+        }
+        throw last != null ? last : new XsException("No available server");
+    }
+
+    /**
+     * 获取全部节点
+     * @return 节点列表，顺序与配置相同
+     */
+    public List<Node<T>> getNodes() {
+        return this.nodes;
+    }
+
+    @Override
+    public void close() {
+        for (Node<T> node : this.nodes) {
+            node.pool.close();
+        }
+    }
+
+    /**
+     * 将未熔断的节点按评分从好到差排列
+     * @param open 用于返回已熔断的节点，按熔断先后排列
+     * @return 排好序的节点
+     */
+    private List<Node<T>> rank(List<Node<T>> open) {
+        long now = System.nanoTime();
+        ArrayList<Node<T>> ready = new ArrayList<>(this.nodes.size());
+        ArrayList<Double> scores = new ArrayList<>(this.nodes.size());
+        for (Node<T> node : this.nodes) {
+            double score = node.score(now);
+            if (Double.isNaN(score)) {
+                open.add(node);
+                continue;
+            }
+            int i = 0;
+            while (i < scores.size() && scores.get(i) <= score) {
+                i++;
+            }
+            scores.add(i, score);
+            ready.add(i, node);
+        }
+        open.sort((a, b) -> Long.compare(a.openedAt, b.openedAt));
+        return ready;
+    }
+
+    /**
+     * 服务端节点及其统计数据
+     * @param <T> 连接类型
+     */
+    public static class Node<T extends XsServer> {
+        private final XsBalancer<T> balancer;
+        private final String conn;
+        private final XsServerPool<T> pool;
+        /**
+         * 请求耗时的EWMA（纳秒），0表示尚无数据
+         */
+        private double latency = 0;
+        /**
+         * 出错率的EWMA，0到1之间
+         */
+        private double errorRate = 0;
+        private long updatedAt = System.nanoTime();
+        private int failures = 0;
+        private int state = CLOSED;
+        private volatile long openedAt;
+        /**
+         * 半开状态下探测请求的放行时间，0表示尚未放行
+         */
+        private long probeAt = 0;
+
+        Node(XsBalancer<T> balancer, String conn, Function<String, T> factory, Function<Supplier<T>, XsServerPool<T>> pools) {
+            this.balancer = balancer;
+            this.conn = conn;
+            this.pool = pools.apply(() -> this.create(factory));
+        }
+
+        public String getConn() {
+            return this.conn;
+        }
+
+        public XsServerPool<T> getPool() {
+            return this.pool;
+        }
+
+        /**
+         * 获取请求耗时的EWMA
+         * @return 毫秒数
+         */
+        public synchronized double getLatency() {
+            return this.latency / 1e6;
+        }
+
+        public synchronized double getErrorRate() {
+            return this.errorRate;
+        }
+
+        /**
+         * 获取熔断状态
+         * @return {@link #CLOSED}、{@link #OPEN}或{@link #HALF_OPEN}
+         */
+        public synchronized int getState() {
+            return this.state;
+        }
+
+        /**
+         * 记录一次成功的请求
+         * @param nanos 请求耗时
+         */
+        synchronized void onSuccess(long nanos) {
+            long now = System.nanoTime();
+            double latency = this.decayed(now);
+            this.latency = latency == 0 ? nanos : latency + this.balancer.alpha * (nanos - latency);
+            this.errorRate -= this.balancer.alpha * this.errorRate;
+            this.updatedAt = now;
+            this.failures = 0;
+            this.state = CLOSED;
+            this.probeAt = 0;
+        }
+
+        /**
+         * 记录一次连接出错
+         */
+        synchronized void onFailure() {
+            long now = System.nanoTime();
+            this.errorRate += this.balancer.alpha * (1 - this.errorRate);
+            this.failures++;
+            if (this.state == HALF_OPEN || this.failures >= this.balancer.failureThreshold) {
+                this.state = OPEN;
+                this.openedAt = now;
+                this.probeAt = 0;
+            }
+        }
+
+        /**
+         * 计算节点评分，越小越好
+         * 评分为耗时乘以（借出的连接数+1），再按出错率放大
+         * @param now 当前时间
+         * @return 评分，节点处于熔断中时返回NaN
+         */
+        synchronized double score(long now) {
+            if (this.state == OPEN && now - this.openedAt >= this.balancer.openNanos) {
+                this.state = HALF_OPEN;
+            }
+            if (this.state == OPEN || (this.state == HALF_OPEN && this.probing(now))) {
+                return Double.NaN;
+            }
+            int active = this.pool.getSize() - this.pool.getIdleSize();
+            return this.decayed(now) * (active + 1) / Math.max(0.05, 1 - this.errorRate);
+        }
+
+        /**
+         * 占用本次借出机会，半开状态下同一时间只放行一个探测请求
+         * @return 可以借出返回true，否则返回false
+         */
+        synchronized boolean acquire() {
+            long now = System.nanoTime();
+            if (this.state == OPEN) {
+                return false;
+            }
+            if (this.state == HALF_OPEN) {
+                if (this.probing(now)) {
+                    return false;
+                }
+                this.probeAt = now;
+            }
+            return true;
+        }
+
+        /**
+         * 创建连接，连接失败计为一次出错
+         * @param factory 连接工厂
+         * @return 新连接
+         */
+        private T create(Function<String, T> factory) {
+            T server;
+            try {
+                server = factory.apply(this.conn);
+            } catch (RuntimeException e) {
+                this.onFailure();
+                throw e;
+            }
+            server.node = this;
+            return server;
+        }
+
+        /**
+         * 判断是否已有未完成的探测请求，探测请求超过冷却时间仍无结果时允许重新探测
+         */
+        private boolean probing(long now) {
+            return this.probeAt != 0 && now - this.probeAt < Math.max(this.balancer.openNanos, 1);
+        }
+
+        /**
+         * 按空闲时间衰减后的耗时
+         */
+        private double decayed(long now) {
+            return this.latency * Math.exp(-(double) (now - this.updatedAt) / this.balancer.decayNanos);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.hangjiayun.infrastructure;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 后台批量索引
+ * 多个生产者线程提交的添加、更新及删除操作进入有界队列，由后台线程编码并累积成批，
+ * 批次数据达到{@link #setBatchSize}或距批次中首个操作超过{@link #setFlushInterval}时，以一个XS_CMD_INDEX_EXDATA命令提交到服务端
+ * 操作按主键分配到各个后台线程，同一主键的添加、更新及删除总是按提交顺序处理
+ * 每个操作返回的Future在其所在批次被服务端确认后完成，批次提交失败时该批次的全部操作都以异常完成
+ */
+public class XsBulkIndexer implements AutoCloseable {
+    /**
+     * 队列已满时阻塞生产者直到有空位
+     */
+    public static final int BLOCK = 0;
+    /**
+     * 队列已满时直接抛出{@link XsException}
+     */
+    public static final int REJECT = 1;
+
+    private static final int ADD = 0;
+    private static final int UPDATE = 1;
+    private static final int DELETE = 2;
+    private static final int FLUSH = 3;
+    private static final int CLOSE = 4;
+
+    private final Xs xs;
+    /**
+     * 提交批次时使用的连接，每个批次借出一次，提交后调用close()归还
+     */
+    private final Supplier<XsIndex> connections;
+    private final Worker[] workers;
+    private volatile int batchSize = 4 << 20;
+    private volatile long flushInterval = 1000;
+    private volatile int policy = BLOCK;
+    private volatile boolean closed = false;
+
+    /**
+     * 使用项目的索引连接池（{@link Xs#borrowIndex()}）提交批次
+     * @param xs 项目
+     * @param threads 后台线程数，每个线程同一时间只占用一个连接
+     * @param queueSize 等待处理的操作数上限，平均分配到各个线程
+     */
+    public XsBulkIndexer(Xs xs, int threads, int queueSize) {
+        this(xs, xs::borrowIndex, threads, queueSize);
+    }
+
+    /**
+     * @param xs 项目
+     * @param connections 提交批次时获取连接的方法，应当从连接池中借出，否则每个批次都会重新建立连接
+     * @param threads 后台线程数
+     * @param queueSize 等待处理的操作数上限，平均分配到各个线程
+     */
+    public XsBulkIndexer(Xs xs, Supplier<XsIndex> connections, int threads, int queueSize) {
+        if (threads < 1) {
+            throw new XsException("Invalid thread number of bulk indexer: " + threads);
+        }
+        if (queueSize < threads) {
+            throw new XsException("Invalid queue size of bulk indexer: " + queueSize);
+        }
+        this.xs = xs;
+        this.connections = connections;
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            this.workers[i] = new Worker(queueSize / threads, "xs-bulk-indexer-" + i);
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * 设置每个批次的最大数据量
+     * @param bytes 字节数，默认为4MB
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsBulkIndexer setBatchSize(int bytes) {
+        this.batchSize = Math.max(1, bytes);
+        return this;
+    }
+
+    /**
+     * 设置批次的最长等待时间，超过后即使未达到批次大小也会提交
+     * @param millis 毫秒数，默认为1000
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsBulkIndexer setFlushInterval(long millis) {
+        this.flushInterval = Math.max(0, millis);
+        return this;
+    }
+
+    /**
+     * 设置队列已满时的处理方式
+     * @param policy {@link #BLOCK}或{@link #REJECT}
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsBulkIndexer setPolicy(int policy) {
+        this.policy = policy;
+        return this;
+    }
+
+    public CompletableFuture<Void> add(XsDocument doc) {
+        return this.submit(new Op(ADD, doc, null, 0), this.getKey(doc));
+    }
+
+    public CompletableFuture<Void> update(XsDocument doc) {
+        return this.submit(new Op(UPDATE, doc, null, 0), this.getKey(doc));
+    }
+
+    /**
+     * 删除主键为指定值的文档
+     * @param id 主键值
+     * @return 所在批次被确认后完成的Future
+     */
+    public CompletableFuture<Void> delete(String id) {
+        return this.submit(new Op(DELETE, null, id, this.xs.getFieldId().vno), id);
+    }
+
+    /**
+     * 删除指定字段包含指定词的文档
+     * 注意：与添加、更新操作的先后顺序只对主键字段保证
+     * @param term 词
+     * @param field 字段名称
+     * @return 所在批次被确认后完成的Future
+     */
+    public CompletableFuture<Void> delete(String term, String field) {
+        return this.submit(new Op(DELETE, null, term, this.xs.getField(field).vno), term);
+    }
+
+    /**
+     * 立即提交已进入队列的全部操作
+     * 返回的Future在各线程处理完之前的操作后完成，操作本身的成败通过各自的Future获取
+     * @return 全部线程处理完毕后完成的Future
+     */
+    public CompletableFuture<Void> flush() {
+        CompletableFuture<?>[] all = new CompletableFuture<?>[this.workers.length];
+        for (int i = 0; i < this.workers.length; i++) {
+            Op op = new Op(FLUSH, null, null, 0);
+            this.workers[i].put(op);
+            all[i] = op.future;
+        }
+        return CompletableFuture.allOf(all);
+    }
+
+    /**
+     * 获取等待处理的操作数
+     * @return 各线程队列中的操作数之和
+     */
+    public int getQueuedCount() {
+        int count = 0;
+        for (Worker worker : this.workers) {
+            count += worker.queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * 提交全部剩余的操作后停止后台线程
+     * 调用后不能再提交新的操作；等待期间被中断时仍会等到全部线程结束，以免留下未完成的操作，之后再恢复中断状态
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        boolean interrupted = Thread.interrupted();
+        for (Worker worker : this.workers) {
+            while (true) {
+                try {
+                    worker.queue.put(new Op(CLOSE, null, null, 0));
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Worker worker : this.workers) {
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            worker.drain();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String getKey(XsDocument doc) {
+        XsFieldMeta fid = this.xs.getFieldId();
+        String key = doc.f(fid.name);
+        if (key == null || key.isEmpty()) {
+            throw new XsException("Missing value of primary key (FIELD: "+fid+")");
+        }
+        return key;
+    }
+
+    private CompletableFuture<Void> submit(Op op, String key) {
+        if (this.closed) {
+            throw new XsException("Bulk indexer is closed");
+        }
+        Worker worker = this.workers[Math.floorMod(key.hashCode(), this.workers.length)];
+        if (this.policy == REJECT) {
+            if (!worker.queue.offer(op)) {
+                throw new XsException("Bulk indexer queue is full");
+            }
+        } else {
+            worker.put(op);
+        }
+        if (this.closed && !worker.isAlive()) {
+            // 与close()并发时，线程可能已经退出
+            worker.drain();
+        }
+        return op.future;
+    }
+
+    /**
+     * 索引操作
+     */
+    private static final class Op {
+        private final int type;
+        private final XsDocument doc;
+        private final String term;
+        private final int vno;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Op(int type, XsDocument doc, String term, int vno) {
+            this.type = type;
+            this.doc = doc;
+            this.term = term;
+            this.vno = vno;
+        }
+    }
+
+    /**
+     * 后台线程，拥有独立的队列及批次缓冲区
+     */
+    private final class Worker extends Thread {
+        private final BlockingQueue<Op> queue;
+        /**
+         * 未连接的索引对象，只用于编码文档及调用文档的回调方法
+         */
+        private final XsIndex encoder = new XsIndex(XsBulkIndexer.this.xs);
+        private final XsExdataBuffer buffer;
+        /**
+         * 当前批次中的操作
+         */
+        private final List<Op> batch = new ArrayList<>();
+        private long batchStart;
+
+        Worker(int capacity, String name) {
+            super(name);
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.buffer = new XsExdataBuffer(Math.min(XsBulkIndexer.this.batchSize, 4 << 20), false);
+            this.setDaemon(true);
+        }
+
+        void put(Op op) {
+            try {
+                this.queue.put(op);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XsException("Interrupted while waiting for bulk indexer queue", e);
+            }
+        }
+
+        /**
+         * 以异常结束队列中剩余的操作，线程退出后调用
+         */
+        void drain() {
+            Op op;
+            while ((op = this.queue.poll()) != null) {
+                op.future.completeExceptionally(new XsException("Bulk indexer is closed"));
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Op op;
+                try {
+                    if (this.batch.isEmpty()) {
+                        op = this.queue.take();
+                    } else {
+                        long wait = this.batchStart + TimeUnit.MILLISECONDS.toNanos(XsBulkIndexer.this.flushInterval) - System.nanoTime();
+                        op = wait > 0 ? this.queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    }
+                } catch (InterruptedException e) {
+                    this.submit();
+                    return;
+                }
+                if (op == null) {
+                    this.submit();
+                } else if (op.type == FLUSH) {
+                    this.submit();
+                    op.future.complete(null);
+                } else if (op.type == CLOSE) {
+                    this.submit();
+                    op.future.complete(null);
+                    return;
+                } else {
+                    this.append(op);
+                }
+            }
+        }
+
+        private void append(Op op) {
+            try {
+                if (op.type == DELETE) {
+                    ByteBuffer term = ByteBuffer.wrap(op.term.toLowerCase().getBytes(StandardCharsets.UTF_8));
+                    this.buffer.append(new XsCommand(XsCmd.XS_CMD_INDEX_REMOVE, 0, op.vno, term));
+                } else {
+                    List<XsCommand> cmds = this.encoder.encode(op.doc, op.type == ADD);
+                    if (cmds == null) {
+                        op.future.complete(null);
+                        return;
+                    }
+                    this.buffer.append(cmds);
+                }
+            } catch (RuntimeException e) {
+                op.future.completeExceptionally(e);
+                return;
+            }
+            if (this.batch.isEmpty()) {
+                this.batchStart = System.nanoTime();
+            }
+            this.batch.add(op);
+            if (this.buffer.length() >= XsBulkIndexer.this.batchSize) {
+                this.submit();
+            }
+        }
+
+        /**
+         * 提交当前批次
+         */
+        private void submit() {
+            if (this.batch.isEmpty()) {
+                return;
+            }
+            RuntimeException error = null;
+            try (XsIndex index = XsBulkIndexer.this.connections.get()) {
+                index.submitExdata(index.detach(this.buffer.view()));
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            for (Op op : this.batch) {
+                if (error != null) {
+                    op.future.completeExceptionally(error);
+                    continue;
+                }
+                try {
+                    if (op.doc != null) {
+                        op.doc.afterSubmit(this.encoder);
+                    }
+                    op.future.complete(null);
+                } catch (RuntimeException e) {
+                    op.future.completeExceptionally(e);
+                }
+            }
+            this.batch.clear();
+            this.buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * 文档变化检测
+ * 按主键记录最近一次提交的文档编码后的哈希值，再次提交内容完全相同的文档时跳过，以减少索引写入及服务端的合并开销
+ * 主键及哈希值都是64位，以开放寻址的方式保存在堆外内存或内存映射文件中，每个主键占用16字节；
+ * 使用文件时记录在进程重启后仍然有效，但须保证期间没有其他途径修改过索引，否则应调用{@link #clear()}
+ * @see XsIndex#setChangeDetector(XsChangeDetector)
+ */
+public class XsChangeDetector implements AutoCloseable {
+    private static final int MAGIC = 0x58534344;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 16;
+    private static final long SEED_KEY = 0x9E3779B97F4A7C15L;
+    private static final long SEED_DATA = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME = 0xFF51AFD7ED558CCDL;
+
+    /**
+     * 记录文件，为null时使用堆外内存
+     */
+    private final FileChannel channel;
+    private ByteBuffer table;
+    private int capacity;
+    private int size;
+
+    /**
+     * 使用堆外内存，记录只在当前进程中有效
+     * @param capacity 预计的主键数量，超出后自动扩容
+     */
+    public XsChangeDetector(int capacity) {
+        this.channel = null;
+        this.allocate(tableCapacity(capacity));
+    }
+
+    /**
+     * 使用内存映射文件，文件已存在时沿用其中的记录
+     * @param file 记录文件
+     * @param capacity 预计的主键数量，超出后自动扩容
+     */
+    public XsChangeDetector(Path file, int capacity) {
+        try {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new XsException("Failed to open change detector file: " + file, e);
+        }
+        try {
+            if (this.channel.size() >= HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                this.channel.read(header, 0);
+                int existing = header.getInt(4);
+                if (header.getInt(0) != MAGIC || Integer.bitCount(existing) != 1
+                        || this.channel.size() < HEADER_SIZE + (long) existing * ENTRY_SIZE) {
+                    throw new XsException("Invalid change detector file: " + file);
+                }
+                this.table = this.map(existing);
+                this.capacity = existing;
+                this.size = this.table.getInt(8);
+                return;
+            }
+        } catch (IOException e) {
+            this.closeQuietly();
+            throw new XsException("Failed to read change detector file: " + file, e);
+        } catch (XsException e) {
+            this.closeQuietly();
+            throw e;
+        }
+        this.allocate(tableCapacity(capacity));
+    }
+
+    /**
+     * 计算一组命令的哈希值
+     * @param cmds 命令
+     * @return 64位哈希值
+     */
+    static long hash(List<XsCommand> cmds) {
+        long h = SEED_DATA;
+        for (XsCommand cmd : cmds) {
+            h = mix(h, ((long) cmd.cmd << 16) | ((long) cmd.arg1 << 8) | cmd.arg2);
+            h = hash(h, cmd.bufView());
+            h = hash(h, cmd.buf1View());
+        }
+        return fmix(h);
+    }
+
+    /**
+     * 判断主键对应的文档是否与上次提交时相同
+     * @param key 主键值
+     * @param hash 文档的哈希值
+     * @return 相同时返回true
+     */
+    synchronized boolean isUnchanged(String key, long hash) {
+        int slot = this.find(keyHash(key));
+        return slot >= 0 && this.table.getLong(offset(slot) + 8) == hash;
+    }
+
+    /**
+     * 记录主键对应的文档的哈希值
+     * @param key 主键值
+     * @param hash 文档的哈希值
+     */
+    synchronized void put(String key, long hash) {
+        long k = keyHash(key);
+        int slot = this.find(k);
+        if (slot < 0) {
+            if ((this.size + 1) * 4L > this.capacity * 3L) {
+                this.resize(this.capacity << 1);
+            }
+            slot = this.insertSlot(k);
+            this.table.putLong(offset(slot), k);
+            this.size++;
+            this.table.putInt(8, this.size);
+        }
+        this.table.putLong(offset(slot) + 8, hash);
+    }
+
+    /**
+     * 删除主键的记录，此后提交该主键的文档不会被跳过
+     * @param key 主键值
+     */
+    synchronized void remove(String key) {
+        int slot = this.find(keyHash(key));
+        if (slot < 0) {
+            return;
+        }
+        // 后移删除：把同一探测序列中的后续记录前移，避免留下墓碑
+        int mask = this.capacity - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (true) {
+            long k = this.table.getLong(offset(next));
+            if (k == 0) {
+                break;
+            }
+            int home = (int) k & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                this.table.putLong(offset(hole), k);
+                this.table.putLong(offset(hole) + 8, this.table.getLong(offset(next) + 8));
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        this.table.putLong(offset(hole), 0);
+        this.table.putLong(offset(hole) + 8, 0);
+        this.size--;
+        this.table.putInt(8, this.size);
+    }
+
+    /**
+     * 清空全部记录
+     */
+    public synchronized void clear() {
+        for (int i = HEADER_SIZE; i < this.table.capacity(); i += 8) {
+            this.table.putLong(i, 0);
+        }
+        this.size = 0;
+        this.table.putInt(8, 0);
+    }
+
+    /**
+     * 获取已记录的主键数量
+     * @return 主键数量
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * 把记录写入文件并关闭，使用堆外内存时只是释放引用
+     */
+    @Override
+    public synchronized void close() {
+        if (this.channel != null) {
+            if (this.table instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) this.table).force();
+            }
+            this.closeQuietly();
+        }
+    }
+
+    private int find(long k) {
+        int mask = this.capacity - 1;
+        int slot = (int) k & mask;
+        while (true) {
+            long cur = this.table.getLong(offset(slot));
+            if (cur == k) {
+                return slot;
+            }
+            if (cur == 0) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int insertSlot(long k) {
+        int mask = this.capacity - 1;
+        int slot = (int) k & mask;
+        while (this.table.getLong(offset(slot)) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        long[] entries = new long[this.size * 2];
+        int n = 0;
+        for (int slot = 0; slot < this.capacity; slot++) {
+            long k = this.table.getLong(offset(slot));
+            if (k != 0) {
+                entries[n++] = k;
+                entries[n++] = this.table.getLong(offset(slot) + 8);
+            }
+        }
+        if (this.channel != null) {
+            // 先清空旧的记录再扩大文件，重新映射后文件中即为空表
+            this.clear();
+        }
+        this.allocate(capacity);
+        for (int i = 0; i < n; i += 2) {
+            int slot = this.insertSlot(entries[i]);
+            this.table.putLong(offset(slot), entries[i]);
+            this.table.putLong(offset(slot) + 8, entries[i + 1]);
+        }
+        this.size = n / 2;
+        this.table.putInt(8, this.size);
+    }
+
+    /**
+     * 分配空表
+     */
+    private void allocate(int capacity) {
+        if (this.channel == null) {
+            this.table = ByteBuffer.allocateDirect(HEADER_SIZE + capacity * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            try {
+                this.table = this.map(capacity);
+            } catch (IOException e) {
+                throw new XsException("Failed to map change detector file", e);
+            }
+            // 新扩大的文件内容为0，旧的部分已被clear()清空
+        }
+        this.capacity = capacity;
+        this.size = 0;
+        this.table.putInt(0, MAGIC);
+        this.table.putInt(4, capacity);
+        this.table.putInt(8, 0);
+    }
+
+    private ByteBuffer map(int capacity) throws IOException {
+        return this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void closeQuietly() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+
+        }
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * ENTRY_SIZE;
+    }
+
+    private static int tableCapacity(int expected) {
+        long need = Math.max(16, (long) expected * 4 / 3 + 1);
+        if (need > (Integer.MAX_VALUE - HEADER_SIZE) / ENTRY_SIZE) {
+            throw new XsException("Too large capacity of change detector: " + expected);
+        }
+        return Integer.highestOneBit((int) need - 1) << 1;
+    }
+
+    private static long keyHash(String key) {
+        long k = fmix(hash(SEED_KEY, ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8))));
+        // 0表示空位
+        return k == 0 ? 1 : k;
+    }
+
+    private static long hash(long h, ByteBuffer data) {
+        data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int len = data.remaining();
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            h = mix(h, data.getLong(i));
+        }
+        long tail = 0;
+        for (int shift = 0; i < len; i++, shift += 8) {
+            tail |= (data.get(i) & 0xffL) << shift;
+        }
+        return mix(h, tail ^ ((long) len << 56));
+    }
+
+    private static long mix(long h, long v) {
+        v *= PRIME;
+        v = Long.rotateLeft(v, 31);
+        h ^= v;
+        return Long.rotateLeft(h, 27) * 5 + 0x52DCE729;
+    }
+
+    private static long fmix(long h) {
+        h ^= h >>> 33;
+        h *= PRIME;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,10 +1,10 @@
 package com.hangjiayun.infrastructure;
 
-import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -39,50 +39,51 @@ public class XsCommand extends XsComponent{
      */
     public ByteBuffer buf1;
 
+    /**
+     * 长度为0的数据，作为未设置数据时的默认值由所有命令共享，因此是只读的
+     */
+    static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
     /**
      * 相比php版本，这里调整为传入Map类型，以方便在使用场景下方便构建参数
+     * 可用的键为cmd、arg1、arg2（Integer类型）及buf、buf1（ByteBuffer类型），其他的键或类型不符的值会被忽略
+     * 需要频繁构建命令时请使用{@link #builder(int)}或{@link Template}
      * @param cmd
      */
     public XsCommand(Map<String, Object> cmd) {
+        this(XsCmd.XS_CMD_NONE);
         for (Map.Entry<String, Object> entry : cmd.entrySet()) {
-            try {
-                Field field = this.getClass().getDeclaredField(entry.getKey());
-                field.setAccessible(true);
-                Class<?> fieldType = field.getType();
-                if (this.isAssignable(fieldType, entry.getValue().getClass())) {
-                    field.set(this, entry.getValue());
-                }
-            } catch (NoSuchFieldException|IllegalAccessException e) {
-                continue;
-            }
-        }
-        if (this.buf1 == null) {
-            this.buf1 = ByteBuffer.allocate(0);
-        }
-        if (this.buf == null) {
-            this.buf = ByteBuffer.allocate(0);
-        }
-    }
-
-    /**
-     * 判断一个类型from的值能否赋值给另一个类型to
-     * @param to 被赋值的变量类型所代表的Class对象
-     * @param from 赋值的变量类型所代表的Class对象
-     * @return
-     */
-    private boolean isAssignable(Class<?> to, Class<?> from) {
-        if (to.isAssignableFrom(from)) return true;
-        if (!from.isPrimitive() && to.isPrimitive()) {
-            //如果不是原始类，那么找出其基础的原始类
-            try {
-                Field field = from.getField("TYPE");
-                Class<?> fromPrimitiveClass = (Class<?>) field.get(null);
-                if (fromPrimitiveClass == to) return true;
-            } catch (Exception e) {
-
+            Object value = entry.getValue();
+            switch (entry.getKey()) {
+                case "cmd":
+                    if (value instanceof Integer) {
+                        this.cmd = (Integer) value;
+                    }
+                    break;
+                case "arg1":
+                    if (value instanceof Integer) {
+                        this.arg1 = (Integer) value;
+                    }
+                    break;
+                case "arg2":
+                    if (value instanceof Integer) {
+                        this.arg2 = (Integer) value;
+                    }
+                    break;
+                case "buf":
+                    if (value instanceof ByteBuffer) {
+                        this.buf = (ByteBuffer) value;
+                    }
+                    break;
+                case "buf1":
+                    if (value instanceof ByteBuffer) {
+                        this.buf1 = (ByteBuffer) value;
+                    }
+                    break;
+                default:
+                    break;
             }
         }
-        return false;
     }
 
     public XsCommand(int cmd, int arg1, int arg2, ByteBuffer buf, ByteBuffer buf1) {
@@ -94,11 +95,11 @@ public class XsCommand extends XsComponent{
     }
 
     public XsCommand(int cmd, int arg1, int arg2, ByteBuffer buf) {
-        this(cmd, arg1, arg2, buf, ByteBuffer.allocate(0));
+        this(cmd, arg1, arg2, buf, EMPTY);
     }
 
     public XsCommand(int cmd, int arg1, int arg2) {
-        this(cmd, arg1, arg2, ByteBuffer.allocate(0));
+        this(cmd, arg1, arg2, EMPTY);
     }
 
     public XsCommand(int cmd, int arg1) {
@@ -110,24 +111,137 @@ public class XsCommand extends XsComponent{
     }
 
 
-    public ByteBuffer toBytes() {
-        byte[] buf1Byte = this.buf1.array();
-        if (buf1Byte.length > 0xff) {
-            buf1Byte = Arrays.copyOfRange(buf1Byte, 0, 0xff);
-            this.buf1 = ByteBuffer.wrap(buf1Byte);
+    /**
+     * 封包头部长度：pack('CCCCI')4个无符号字符和1个无符号整数（每个C是1字节，每个I是4字节）
+     */
+    static final int HEADER_SIZE = 8;
+
+    /**
+     * 获取主数据内容的字节数，主数据内容为buf中从0到limit的部分
+     * @return 字节数
+     */
+    public int getBufLength() {
+        return this.buf.limit();
+    }
+
+    /**
+     * 获取辅助数据内容的字节数，超过255字节的部分会被截断
+     * @return 字节数
+     */
+    public int getBuf1Length() {
+        return Math.min(this.buf1.limit(), 0xff);
+    }
+
+    /**
+     * 获取封包后的总字节数
+     * @return 字节数
+     */
+    public int getEncodedLength() {
+        return HEADER_SIZE + this.getBufLength() + this.getBuf1Length();
+    }
+
+    /**
+     * 将封包头部写入指定的缓冲区
+     * 长度字段固定以小端字节序写入，与目标缓冲区的字节序设置无关
+     * @param out 目标缓冲区，至少要有8字节的剩余空间
+     */
+    void putHeader(ByteBuffer out) {
+        int len = this.getBufLength();
+        out.put((byte)this.cmd);
+        out.put((byte)this.arg1);
+        out.put((byte)this.arg2);
+        out.put((byte)this.getBuf1Length());
+        out.put((byte)len);
+        out.put((byte)(len >>> 8));
+        out.put((byte)(len >>> 16));
+        out.put((byte)(len >>> 24));
+    }
+
+    /**
+     * 将完整的封包写入指定的缓冲区
+     * 目标缓冲区可以是堆外或切片得到的缓冲区，写入从其position开始，完成后position移到封包末尾；
+     * 主数据及辅助数据为堆内缓冲区时直接从底层数组复制，不会创建任何对象，自身的position等状态也不会改变
+     * @param out 目标缓冲区
+     * @return 目标缓冲区
+     * @throws BufferOverflowException 剩余空间不足时，此时不会写入任何数据
+     */
+    public ByteBuffer encodeTo(ByteBuffer out) {
+        if (out.remaining() < this.getEncodedLength()) {
+            throw new BufferOverflowException();
+        }
+        this.putHeader(out);
+        putData(out, this.buf, this.getBufLength());
+        putData(out, this.buf1, this.getBuf1Length());
+        return out;
+    }
+
+    /**
+     * 复制数据缓冲区从0开始的length个字节
+     */
+    private static void putData(ByteBuffer out, ByteBuffer data, int length) {
+        if (length == 0) {
+            return;
         }
-        byte[] bufByte = this.buf.array();
+        if (data.hasArray()) {
+            out.put(data.array(), data.arrayOffset(), length);
+        } else {
+            out.put(data.duplicate().position(0).limit(length));
+        }
+    }
+
+    /**
+     * 获取主数据内容的视图，不复制数据
+     * @return 从0到limit的视图
+     */
+    ByteBuffer bufView() {
+        return this.buf.duplicate().position(0);
+    }
+
+    /**
+     * 获取辅助数据内容的视图，不复制数据，超过255字节的部分被截断
+     * @return 从0到截断长度的视图
+     */
+    ByteBuffer buf1View() {
+        return this.buf1.duplicate().position(0).limit(this.getBuf1Length());
+    }
+
+    /**
+     * 以指定字符集解码主数据内容
+     * @param charset 字符集，服务端返回的文本数据均为UTF-8编码
+     * @return 解码后的字符串
+     */
+    public String getBufString(Charset charset) {
+        ByteBuffer view = this.bufView();
+        if (view.hasArray()) {
+            return new String(view.array(), view.arrayOffset(), view.limit(), charset);
+        }
+        return charset.decode(view).toString();
+    }
+
+    /**
+     * 复制指令
+     * 主数据及辅助数据也会复制一份，用于需要在接收缓冲区失效后继续保留响应指令的情况
+     * @return 新的指令对象
+     */
+    public XsCommand copy() {
+        return new XsCommand(this.cmd, this.arg1, this.arg2, copyOf(this.bufView()), copyOf(this.buf1View()));
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer src) {
+        ByteBuffer copy = ByteBuffer.allocate(src.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        copy.put(src).flip();
+        return copy;
+    }
+
+    /**
+     * 转化为封包数据
+     * @return 包含完整封包的缓冲区，position为0
+     */
+    public ByteBuffer toBytes() {
         //以utf-8编码传递数据给服务端
-        ByteBuffer buffer = ByteBuffer.allocate(8+bufByte.length+buf1Byte.length);//pack('CCCCI')4个无符号字符和1个无符号整数（每个C是1字节，每个I是4字节），注意，这与本类中定义的几个属性的数据类型范围有关系，同时C语言中的int类型所占用空间根据机器决定的，现代大多数就机器都是32位的，因此最小算是4字节
+        ByteBuffer buffer = ByteBuffer.allocate(this.getEncodedLength());
         buffer.order(ByteOrder.LITTLE_ENDIAN);//byte[]数组按索引依次由低地址到高地址，因此要使用小端字节序
-        buffer.put((byte)this.cmd);
-        buffer.put((byte)this.arg1);
-        buffer.put((byte)this.arg2);
-        buffer.put((byte)buf1Byte.length);
-        buffer.putInt(bufByte.length);
-        buffer.put(bufByte);
-        buffer.put(buf1Byte);
-        return buffer;
+        return this.encodeTo(buffer).flip();
     }
 
     /**
@@ -177,4 +291,115 @@ public class XsCommand extends XsComponent{
         this.arg1 = (arg >>> 8) & 0xff;
         this.arg2 = arg & 0xff;
     }
+
+    /**
+     * 创建命令构建器
+     * @param cmd 命令代码
+     * @return 构建器
+     */
+    public static Builder builder(int cmd) {
+        return new Builder(cmd);
+    }
+
+    /**
+     * 命令构建器
+     * 以串接方式设置参数及数据，未设置的数据为空，同一个构建器可以多次调用{@link #build()}构建相同的命令
+     */
+    public static class Builder {
+        private final int cmd;
+        private int arg1 = 0;
+        private int arg2 = 0;
+        private ByteBuffer buf = EMPTY;
+        private ByteBuffer buf1 = EMPTY;
+
+        private Builder(int cmd) {
+            this.cmd = cmd;
+        }
+
+        public Builder setArg1(int arg1) {
+            this.arg1 = arg1;
+            return this;
+        }
+
+        public Builder setArg2(int arg2) {
+            this.arg2 = arg2;
+            return this;
+        }
+
+        /**
+         * 设置16位的参数，高8位为arg1，低8位为arg2
+         * @param arg 参数
+         * @return 返回自身对象以支持串接操作
+         */
+        public Builder setArg(int arg) {
+            this.arg1 = (arg >>> 8) & 0xff;
+            this.arg2 = arg & 0xff;
+            return this;
+        }
+
+        public Builder setBuf(ByteBuffer buf) {
+            this.buf = buf;
+            return this;
+        }
+
+        /**
+         * 以UTF-8编码设置主数据
+         * @param buf 主数据
+         * @return 返回自身对象以支持串接操作
+         */
+        public Builder setBuf(String buf) {
+            return this.setBuf(ByteBuffer.wrap(buf.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        public Builder setBuf1(ByteBuffer buf1) {
+            this.buf1 = buf1;
+            return this;
+        }
+
+        /**
+         * 以UTF-8编码设置辅助数据
+         * @param buf1 辅助数据
+         * @return 返回自身对象以支持串接操作
+         */
+        public Builder setBuf1(String buf1) {
+            return this.setBuf1(ByteBuffer.wrap(buf1.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        public XsCommand build() {
+            return new XsCommand(this.cmd, this.arg1, this.arg2, this.buf, this.buf1);
+        }
+    }
+
+    /**
+     * 命令模板
+     * 用于命令代码及参数固定的命令（如XS_CMD_USE、XS_CMD_QUERY_INIT），模板本身不可变，可以定义为常量在多个线程间共享，
+     * 每次调用{@link #create()}得到一个新的命令，只需要数据时传入
+     */
+    public static final class Template {
+        private final int cmd;
+        private final int arg1;
+        private final int arg2;
+
+        public Template(int cmd, int arg1, int arg2) {
+            this.cmd = cmd;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+        }
+
+        public Template(int cmd) {
+            this(cmd, 0, 0);
+        }
+
+        public XsCommand create() {
+            return new XsCommand(this.cmd, this.arg1, this.arg2, EMPTY, EMPTY);
+        }
+
+        public XsCommand create(ByteBuffer buf) {
+            return new XsCommand(this.cmd, this.arg1, this.arg2, buf, EMPTY);
+        }
+
+        public XsCommand create(ByteBuffer buf, ByteBuffer buf1) {
+            return new XsCommand(this.cmd, this.arg1, this.arg2, buf, buf1);
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package com.hangjiayun.infrastructure;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
@@ -16,12 +17,13 @@ public class XsDocument {
     /**
      * 在具体使用时，这些key的值的类型为：
      * - docid: Long类型
+     * - rank: Long类型
      * - ccount: Long类型
      * - percent: Long类型
      * - weight: Float类型
      * - matched: ArrayList<String>类型
      */
-    private Map<String, Object> meta = new HashMap<>(5);
+    private Map<String, Object> meta = new HashMap<>(6);
     public XsDocument(String p, String d) {
         if (p != null) {
             byte[] pbytes = p.getBytes(StandardCharsets.ISO_8859_1);
@@ -29,11 +31,7 @@ public class XsDocument {
                 this.setCharset(p);
                 return;
             }
-            ByteBuffer byteBuffer = ByteBuffer.wrap(pbytes);
-            this.meta.put("docid", (long)byteBuffer.getInt());
-            this.meta.put("ccount", (long)byteBuffer.getInt());
-            this.meta.put("percent", (long)byteBuffer.getInt());
-            this.meta.put("weight", byteBuffer.getFloat());
+            this.parseMeta(ByteBuffer.wrap(pbytes));
         }
 
         if (d != null) {
@@ -41,6 +39,33 @@ public class XsDocument {
         }
     }
 
+    /**
+     * 由搜索结果中的文档元数据构建文档
+     * @param meta XS_CMD_SEARCH_RESULT_DOC响应包的数据内容
+     * @param charset 文档字符集，可以为null
+     */
+    public XsDocument(ByteBuffer meta, String charset) {
+        if (meta.remaining() >= resSize) {
+            this.parseMeta(meta.duplicate());
+        }
+        if (charset != null) {
+            this.setCharset(charset);
+        }
+    }
+
+    /**
+     * 解析文档元数据，对应PHP版本中的unpack('Idocid/Irank/Iccount/ipercent/fweight')
+     * @param buf 元数据
+     */
+    private void parseMeta(ByteBuffer buf) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        this.meta.put("docid", buf.getInt() & 0xFFFFFFFFL);
+        this.meta.put("rank", buf.getInt() & 0xFFFFFFFFL);
+        this.meta.put("ccount", buf.getInt() & 0xFFFFFFFFL);
+        this.meta.put("percent", (long)buf.getInt());
+        this.meta.put("weight", buf.getFloat());
+    }
+
     public void setCharset(String charset) {
         this.charset = charset.toUpperCase();
         if (this.charset.equals("UTF8")) {
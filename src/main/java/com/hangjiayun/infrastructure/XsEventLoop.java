@@ -0,0 +1,204 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于{@link Selector}的网络事件循环
+ * 少量的事件循环线程即可同时处理大量连接上的异步命令，见{@link XsServer#execCommandAsync}
+ * 注意：不要在异步回调中调用同步方法（如{@link XsServer#execCommand}），否则会阻塞事件循环线程
+ */
+public class XsEventLoop implements AutoCloseable {
+    /**
+     * 检查异步请求是否超时的间隔毫秒数
+     */
+    private static final long CHECK_INTERVAL = 100;
+    private static XsEventLoop defaultLoop;
+
+    private final Worker[] workers;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param threads 事件循环线程数
+     */
+    public XsEventLoop(int threads) {
+        if (threads < 1) {
+            throw new XsException("Invalid thread number of event loop: " + threads);
+        }
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            try {
+                this.workers[i] = new Worker(Selector.open(), "xs-event-loop-" + i);
+            } catch (IOException e) {
+                this.close();
+                throw new XsException("Failed to open selector for event loop", e);
+            }
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * 获取默认的全局事件循环
+     * 线程数为CPU核数，但最多不超过4个
+     * @return 默认事件循环
+     */
+    public static synchronized XsEventLoop getDefault() {
+        if (defaultLoop == null) {
+            defaultLoop = new XsEventLoop(Math.min(4, Runtime.getRuntime().availableProcessors()));
+        }
+        return defaultLoop;
+    }
+
+    /**
+     * 判断当前线程是否为事件循环线程
+     * @return 是返回true，不是返回false
+     */
+    public static boolean inEventLoop() {
+        return Thread.currentThread() instanceof Worker;
+    }
+
+    /**
+     * 将一个已连接的通道注册到事件循环中
+     * @param channel 已连接的通道，将被切换为非阻塞模式
+     * @param decoder 响应解码器，其中尚未处理的数据会继续被异步通道使用
+     * @return 异步通道
+     */
+    XsAsyncChannel register(SocketChannel channel, XsFrameDecoder decoder) {
+        Worker worker = this.workers[Math.floorMod(this.next.getAndIncrement(), this.workers.length)];
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            throw new XsException("Failed to switch connection to non-blocking mode", e);
+        }
+        XsAsyncChannel async = new XsAsyncChannel(channel, worker, decoder);
+        worker.execute(async, async::register);
+        return async;
+    }
+
+    @Override
+    public void close() {
+        for (Worker worker : this.workers) {
+            if (worker != null) {
+                worker.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 事件循环线程，每个线程拥有一个独立的Selector
+     */
+    static class Worker extends Thread {
+        final Selector selector;
+        private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean closed = false;
+
+        Worker(Selector selector, String name) {
+            super(name);
+            this.selector = selector;
+            this.setDaemon(true);
+        }
+
+        /**
+         * 在事件循环线程中执行任务
+         * @param channel 任务所属的异步通道，任务抛出异常时该通道失败
+         * @param task 任务
+         */
+        void execute(XsAsyncChannel channel, Runnable task) {
+            this.tasks.add(new Task(channel, task));
+            if (Thread.currentThread() != this) {
+                this.selector.wakeup();
+            }
+        }
+
+        boolean isShutdown() {
+            return this.closed;
+        }
+
+        void shutdown() {
+            this.closed = true;
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long checkedAt = System.nanoTime();
+            while (!this.closed) {
+                try {
+                    if (!this.tasks.isEmpty()) {
+                        this.selector.selectNow();
+                    } else if (!this.selector.keys().isEmpty()) {
+                        this.selector.select(CHECK_INTERVAL);
+                    } else {
+                        this.selector.select();
+                    }
+                } catch (IOException e) {
+                    break;
+                }
+                Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    XsAsyncChannel channel = (XsAsyncChannel) key.attachment();
+                    try {
+                        channel.handle(key);
+                    } catch (RuntimeException e) {
+                        channel.fail(unexpected(e));
+                    }
+                }
+                this.runTasks();
+                long now = System.nanoTime();
+                if (now - checkedAt >= TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL)) {
+                    checkedAt = now;
+                    for (SelectionKey key : this.selector.keys()) {
+                        if (key.isValid()) {
+                            ((XsAsyncChannel) key.attachment()).checkTimeout(now);
+                        }
+                    }
+                }
+            }
+            this.runTasks();
+            for (SelectionKey key : this.selector.keys()) {
+                ((XsAsyncChannel) key.attachment()).fail(new XsException("Event loop has been closed"));
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        /**
+         * 执行队列中的全部任务，任务出错时只让所属的通道失败
+         */
+        private void runTasks() {
+            Task task;
+            while ((task = this.tasks.poll()) != null) {
+                try {
+                    task.task.run();
+                } catch (RuntimeException e) {
+                    task.channel.fail(unexpected(e));
+                }
+            }
+        }
+
+        private static XsException unexpected(RuntimeException e) {
+            return e instanceof XsException ? (XsException) e : new XsException("Unexpected error in event loop: " + e, e);
+        }
+    }
+
+    private static final class Task {
+        private final XsAsyncChannel channel;
+        private final Runnable task;
+
+        Task(XsAsyncChannel channel, Runnable task) {
+            this.channel = channel;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.hangjiayun.infrastructure;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * 批量提交（EXDATA）的数据缓冲区
+ * 命令追加时即编码为封包字节并累计长度，追加的耗时只与命令本身的大小有关；
+ * 提交时直接以{@link #view()}作为XS_CMD_INDEX_EXDATA的主数据，不再复制
+ */
+class XsExdataBuffer {
+    private static final int MIN_CAPACITY = 64 << 10;
+
+    private final boolean direct;
+    private ByteBuffer data;
+
+    /**
+     * @param capacity 初始容量（字节），追加时按需扩大
+     * @param direct 是否使用堆外内存
+     */
+    XsExdataBuffer(int capacity, boolean direct) {
+        this.direct = direct;
+        this.data = this.allocate(Math.max(MIN_CAPACITY, capacity));
+    }
+
+    /**
+     * 追加命令封包
+     * @param cmd 命令
+     */
+    void append(XsCommand cmd) {
+        this.reserve(cmd.getEncodedLength());
+        cmd.encodeTo(this.data);
+    }
+
+    void append(List<XsCommand> cmds) {
+        int len = 0;
+        for (XsCommand cmd : cmds) {
+            len += cmd.getEncodedLength();
+        }
+        this.reserve(len);
+        for (XsCommand cmd : cmds) {
+            cmd.encodeTo(this.data);
+        }
+    }
+
+    /**
+     * 追加已编码的命令封包
+     * @param packets 连续的命令封包，从其position读到limit，自身状态不变
+     */
+    void append(ByteBuffer packets) {
+        this.reserve(packets.remaining());
+        this.data.put(packets.duplicate());
+    }
+
+    /**
+     * 已缓冲的字节数
+     * @return 字节数
+     */
+    int length() {
+        return this.data.position();
+    }
+
+    boolean isEmpty() {
+        return this.data.position() == 0;
+    }
+
+    boolean isDirect() {
+        return this.direct;
+    }
+
+    /**
+     * 获取已缓冲的数据，不复制
+     * 在数据发送完毕前不能调用{@link #clear()}或继续追加
+     * @return 从0到已缓冲长度的视图
+     */
+    ByteBuffer view() {
+        return this.data.duplicate().flip();
+    }
+
+    void clear() {
+        this.data.clear();
+    }
+
+    private void reserve(int len) {
+        if (this.data.remaining() >= len) {
+            return;
+        }
+        long need = (long) this.data.position() + len;
+        if (need > Integer.MAX_VALUE) {
+            throw new XsException("Exdata buffer overflow (SIZE: " + need + ")");
+        }
+        int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(need, (long) this.data.capacity() << 1));
+        ByteBuffer data = this.allocate(capacity);
+        data.put(this.data.flip());
+        this.data = data;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer = this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,571 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 离线打包索引数据
+ * 把JSONL或CSV格式的导出数据按项目的字段方案编码为命令封包，写入可由{@link XsIndex#addExdata(java.nio.file.Path)}提交的文件，
+ * 编码与{@link XsIndex#update(XsDocument, boolean)}相同，由多个线程并行进行，写出的顺序与输入一致
+ * - JSONL：每行一个JSON对象，键为字段名称，值为字符串、数值或布尔值，null表示不设置该字段，不支持嵌套的对象及数组
+ * - CSV：第一行为字段名称，值可以用双引号包围（其中的双引号写作两个双引号），被包围的值可以包含逗号及换行
+ * 不在字段方案中的键或列会被忽略，可以通过{@link #setColumn}映射为其他名称的字段
+ * 注意：编码时会调用文档的{@link XsDocument#beforeSubmit}，但不会调用{@link XsDocument#afterSubmit}
+ */
+public class XsExdataPacker {
+    public static final int JSONL = 0;
+    public static final int CSV = 1;
+
+    /**
+     * 每个编码任务的记录数
+     */
+    private static final int CHUNK = 256;
+
+    private final Xs xs;
+    /**
+     * 未连接的索引对象，只用于编码文档
+     */
+    private final XsIndex encoder;
+    private final Map<String, String> columns = new HashMap<>();
+    /**
+     * 输入格式，-1表示按文件扩展名判断
+     */
+    private int format = -1;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long segmentSize = 256L << 20;
+    private boolean add = false;
+
+    public XsExdataPacker(Xs xs) {
+        this.xs = xs;
+        this.encoder = new XsIndex(xs);
+    }
+
+    /**
+     * 设置输入格式
+     * @param format {@link #JSONL}或{@link #CSV}，默认按文件扩展名判断，.csv为CSV，其余为JSONL
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsExdataPacker setFormat(int format) {
+        if (format != JSONL && format != CSV) {
+            throw new XsException("Invalid format of exdata packer: " + format);
+        }
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * 设置编码线程数
+     * @param threads 线程数，默认为CPU核数
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsExdataPacker setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * 设置每个输出文件的最大字节数，超过后写入下一个文件，单个文档的数据不会被拆分到两个文件中
+     * @param bytes 字节数，默认为256MB
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsExdataPacker setSegmentSize(long bytes) {
+        this.segmentSize = Math.max(1, bytes);
+        return this;
+    }
+
+    /**
+     * 设置是否以添加的方式编码，添加时服务端不检查主键是否已经存在，适合重建索引
+     * @param add 是否为添加，默认为false，即更新
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsExdataPacker setAdd(boolean add) {
+        this.add = add;
+        return this;
+    }
+
+    /**
+     * 把输入中的键或列映射为指定的字段
+     * @param column 键或列名称
+     * @param field 字段名称
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsExdataPacker setColumn(String column, String field) {
+        this.xs.getField(field);
+        this.columns.put(column, field);
+        return this;
+    }
+
+    /**
+     * 打包，输出文件以输入文件名（不含扩展名）为前缀
+     * @param input 输入文件，编码为UTF-8
+     * @param outputDir 输出目录，不存在时自动创建
+     * @return 按顺序排列的输出文件
+     */
+    public List<Path> pack(Path input, Path outputDir) {
+        String name = input.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return this.pack(input, outputDir, dot > 0 ? name.substring(0, dot) : name);
+    }
+
+    /**
+     * 打包
+     * @param input 输入文件，编码为UTF-8
+     * @param outputDir 输出目录，不存在时自动创建
+     * @param prefix 输出文件名前缀，文件名形如prefix-00000.exdata
+     * @return 按顺序排列的输出文件
+     */
+    public List<Path> pack(Path input, Path outputDir, String prefix) {
+        int format = this.format >= 0 ? this.format : (input.toString().toLowerCase().endsWith(".csv") ? CSV : JSONL);
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        int window = this.threads * 2;
+        ArrayDeque<CompletableFuture<ByteBuffer>> encoding = new ArrayDeque<>();
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             Segments out = new Segments(outputDir, prefix)) {
+            String[] header = null;
+            if (format == CSV) {
+                String line = readCsvRecord(reader);
+                if (line == null) {
+                    return out.paths;
+                }
+                header = this.mapColumns(parseCsv(line));
+            }
+            long count = 0;
+            boolean eof = false;
+            while (!eof || !encoding.isEmpty()) {
+                while (!eof && encoding.size() < window) {
+                    List<String> records = new ArrayList<>(CHUNK);
+                    String record;
+                    while (records.size() < CHUNK && (record = format == CSV ? readCsvRecord(reader) : reader.readLine()) != null) {
+                        records.add(record);
+                    }
+                    if (records.size() < CHUNK) {
+                        eof = true;
+                    }
+                    if (!records.isEmpty()) {
+                        long first = count + 1;
+                        String[] fields = header;
+                        encoding.add(CompletableFuture.supplyAsync(() -> this.encode(records, fields, first), pool));
+                        count += records.size();
+                    }
+                }
+                if (!encoding.isEmpty()) {
+                    out.write(join(encoding.poll()));
+                }
+            }
+            return out.paths;
+        } catch (IOException e) {
+            throw new XsException("Failed to pack exdata: " + e.getMessage(), e);
+        } finally {
+            for (CompletableFuture<ByteBuffer> future : encoding) {
+                future.cancel(false);
+            }
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 编码一块记录
+     * @param records 原始记录
+     * @param header CSV的列对应的字段名称，JSONL时为null
+     * @param first 第一条记录的序号，用于出错信息
+     * @return 命令封包
+     */
+    private ByteBuffer encode(List<String> records, String[] header, long first) {
+        XsExdataBuffer data = new XsExdataBuffer(0, false);
+        for (int i = 0; i < records.size(); i++) {
+            List<XsCommand> cmds;
+            try {
+                XsDocument doc = header == null ? this.parseJsonDocument(records.get(i)) : this.parseCsvDocument(records.get(i), header);
+                cmds = doc == null ? null : this.encoder.encode(doc, this.add);
+            } catch (XsException e) {
+                throw new XsException(e.getMessage() + " (RECORD: " + (first + i) + ")", e);
+            }
+            if (cmds != null) {
+                data.append(cmds);
+            }
+        }
+        return data.view();
+    }
+
+    /**
+     * 获取键或列对应的字段名称
+     * @return 字段名称，不在字段方案中时为null
+     */
+    private String mapColumn(String column) {
+        String field = this.columns.getOrDefault(column, column);
+        return this.xs.getField(field, false) == null ? null : field;
+    }
+
+    private String[] mapColumns(String[] columns) {
+        String[] fields = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            fields[i] = this.mapColumn(columns[i].trim());
+        }
+        return fields;
+    }
+
+    private XsDocument parseCsvDocument(String record, String[] header) {
+        String[] values = parseCsv(record);
+        if (values.length == 1 && values[0].isEmpty()) {
+            return null;
+        }
+        XsDocument doc = new XsDocument((String) null, null);
+        for (int i = 0; i < values.length && i < header.length; i++) {
+            if (header[i] != null) {
+                doc.setField(header[i], values[i]);
+            }
+        }
+        return doc;
+    }
+
+    private XsDocument parseJsonDocument(String line) {
+        if (line.isBlank()) {
+            return null;
+        }
+        XsDocument doc = new XsDocument((String) null, null);
+        for (Map.Entry<String, String> entry : parseJson(line).entrySet()) {
+            String field = this.mapColumn(entry.getKey());
+            if (field != null && entry.getValue() != null) {
+                doc.setField(field, entry.getValue());
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * 读取一条CSV记录，被双引号包围的值中的换行会被保留
+     * @return 记录，已读完时为null
+     */
+    private static String readCsvRecord(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            return null;
+        }
+        StringBuilder record = null;
+        int quotes = countQuotes(line);
+        while ((quotes & 1) != 0) {
+            String next = reader.readLine();
+            if (next == null) {
+                break;
+            }
+            if (record == null) {
+                record = new StringBuilder(line);
+            }
+            record.append('\n').append(next);
+            quotes += countQuotes(next);
+        }
+        return record == null ? line : record.toString();
+    }
+
+    private static int countQuotes(String line) {
+        int count = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == '"') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 解析一条CSV记录
+     * @param record 记录
+     * @return 各列的值
+     */
+    static String[] parseCsv(String record) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        int i = 0;
+        int len = record.length();
+        while (true) {
+            value.setLength(0);
+            if (i < len && record.charAt(i) == '"') {
+                i++;
+                while (true) {
+                    if (i >= len) {
+                        throw new XsException("Unclosed quote in CSV");
+                    }
+                    char c = record.charAt(i++);
+                    if (c == '"') {
+                        if (i < len && record.charAt(i) == '"') {
+                            value.append('"');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        value.append(c);
+                    }
+                }
+                if (i < len && record.charAt(i) != ',') {
+                    throw new XsException("Unexpected character after quote in CSV");
+                }
+            } else {
+                while (i < len && record.charAt(i) != ',') {
+                    value.append(record.charAt(i++));
+                }
+            }
+            values.add(value.toString());
+            if (i >= len) {
+                break;
+            }
+            // skip ','
+            i++;
+        }
+        return values.toArray(new String[0]);
+    }
+
+    /**
+     * 解析一个不含嵌套的JSON对象
+     * @param json JSON文本
+     * @return 键及值，数值及布尔值保留原文，null值为null
+     */
+    static Map<String, String> parseJson(String json) {
+        JsonReader reader = new JsonReader(json);
+        Map<String, String> result = new LinkedHashMap<>();
+        reader.expect('{');
+        if (!reader.consume('}')) {
+            do {
+                String key = reader.string();
+                reader.expect(':');
+                result.put(key, reader.value());
+            } while (reader.consume(','));
+            reader.expect('}');
+        }
+        reader.end();
+        return result;
+    }
+
+    private static ByteBuffer join(CompletableFuture<ByteBuffer> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new XsException(String.valueOf(e.getCause()), e.getCause());
+        }
+    }
+
+    /**
+     * 命令行入口
+     * 用法：XsExdataPacker [选项] 项目配置文件 输入文件 输出目录
+     * 选项：--threads=N、--segment-mb=N、--format=jsonl|csv、--add、--column=列名:字段名（可重复）
+     */
+    public static void main(String[] args) {
+        List<String> files = new ArrayList<>();
+        Map<String, String> columns = new LinkedHashMap<>();
+        Integer threads = null;
+        Long segment = null;
+        Integer format = null;
+        boolean add = false;
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--segment-mb=")) {
+                segment = Long.parseLong(arg.substring(13)) << 20;
+            } else if (arg.startsWith("--format=")) {
+                format = "csv".equalsIgnoreCase(arg.substring(9)) ? CSV : JSONL;
+            } else if (arg.equals("--add")) {
+                add = true;
+            } else if (arg.startsWith("--column=") && arg.indexOf(':') > 9) {
+                columns.put(arg.substring(9, arg.indexOf(':')), arg.substring(arg.indexOf(':') + 1));
+            } else {
+                files.add(arg);
+            }
+        }
+        if (files.size() != 3) {
+            System.err.println("Usage: XsExdataPacker [--threads=N] [--segment-mb=N] [--format=jsonl|csv] [--add] [--column=COLUMN:FIELD] <project.ini> <input> <output-dir>");
+            System.exit(1);
+        }
+        XsExdataPacker packer = new XsExdataPacker(new Xs(files.get(0))).setAdd(add);
+        if (threads != null) {
+            packer.setThreads(threads);
+        }
+        if (segment != null) {
+            packer.setSegmentSize(segment);
+        }
+        if (format != null) {
+            packer.setFormat(format);
+        }
+        for (Map.Entry<String, String> entry : columns.entrySet()) {
+            packer.setColumn(entry.getKey(), entry.getValue());
+        }
+        for (Path path : packer.pack(Path.of(files.get(1)), Path.of(files.get(2)))) {
+            System.out.println(path);
+        }
+    }
+
+    /**
+     * 按大小切分的输出文件
+     */
+    private final class Segments implements AutoCloseable {
+        private final Path dir;
+        private final String prefix;
+        private final List<Path> paths = new ArrayList<>();
+        private FileChannel channel;
+        private long size;
+
+        Segments(Path dir, String prefix) throws IOException {
+            this.dir = Files.createDirectories(dir);
+            this.prefix = prefix;
+        }
+
+        /**
+         * 写入一块完整文档的数据，当前文件已有数据且写入后超过大小限制时，先切换到下一个文件
+         */
+        void write(ByteBuffer data) throws IOException {
+            if (!data.hasRemaining()) {
+                return;
+            }
+            if (this.channel != null && this.size > 0 && this.size + data.remaining() > XsExdataPacker.this.segmentSize) {
+                this.channel.close();
+                this.channel = null;
+            }
+            if (this.channel == null) {
+                Path path = this.dir.resolve(String.format("%s-%05d.exdata", this.prefix, this.paths.size()));
+                this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                this.paths.add(path);
+                this.size = 0;
+            }
+            this.size += data.remaining();
+            while (data.hasRemaining()) {
+                this.channel.write(data);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.channel != null) {
+                this.channel.close();
+            }
+        }
+    }
+
+    /**
+     * 简单的JSON读取，只支持由字符串、数值、布尔值及null组成的单层对象
+     */
+    private static final class JsonReader {
+        private final String json;
+        private int pos = 0;
+
+        JsonReader(String json) {
+            this.json = json;
+        }
+
+        void expect(char c) {
+            if (!this.consume(c)) {
+                throw this.error("Expected '" + c + "'");
+            }
+        }
+
+        boolean consume(char c) {
+            this.skipSpace();
+            if (this.pos < this.json.length() && this.json.charAt(this.pos) == c) {
+                this.pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void end() {
+            this.skipSpace();
+            if (this.pos < this.json.length()) {
+                throw this.error("Unexpected trailing data");
+            }
+        }
+
+        String value() {
+            this.skipSpace();
+            if (this.pos >= this.json.length()) {
+                throw this.error("Missing value");
+            }
+            char c = this.json.charAt(this.pos);
+            if (c == '"') {
+                return this.string();
+            }
+            if (c == '{' || c == '[') {
+                throw this.error("Nested value is not supported");
+            }
+            int start = this.pos;
+            while (this.pos < this.json.length() && ",}] \t\r\n".indexOf(this.json.charAt(this.pos)) < 0) {
+                this.pos++;
+            }
+            String token = this.json.substring(start, this.pos);
+            if (token.equals("null")) {
+                return null;
+            }
+            if (token.isEmpty() || !(token.equals("true") || token.equals("false") || token.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?"))) {
+                throw this.error("Invalid value `" + token + "`");
+            }
+            return token;
+        }
+
+        String string() {
+            this.expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (this.pos >= this.json.length()) {
+                    throw this.error("Unclosed string");
+                }
+                char c = this.json.charAt(this.pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (this.pos >= this.json.length()) {
+                    throw this.error("Unclosed string");
+                }
+                c = this.json.charAt(this.pos++);
+                switch (c) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (this.pos + 4 > this.json.length()) {
+                            throw this.error("Invalid unicode escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(this.json.substring(this.pos, this.pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw this.error("Invalid unicode escape");
+                        }
+                        this.pos += 4;
+                        break;
+                    default:
+                        sb.append(c);
+                }
+            }
+        }
+
+        private void skipSpace() {
+            while (this.pos < this.json.length() && Character.isWhitespace(this.json.charAt(this.pos))) {
+                this.pos++;
+            }
+        }
+
+        private XsException error(String message) {
+            return new XsException("Invalid JSON: " + message + " at " + this.pos);
+        }
+    }
+}
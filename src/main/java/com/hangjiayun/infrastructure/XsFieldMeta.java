@@ -2,9 +2,9 @@ package com.hangjiayun.infrastructure;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class XsFieldMeta {
     public static final int MAX_WDF = 0x3f;
@@ -74,7 +74,7 @@ public class XsFieldMeta {
     /**
      * 分词器实例缓存
      */
-    private static Map<String, XsTokenizer> tokenizers = new HashMap<>();
+    private static Map<String, XsTokenizer> tokenizers = new ConcurrentHashMap<>();
     public XsFieldMeta(String name, Map<String, String> config) {
         this.name = name;
         this.fromConfig(config);
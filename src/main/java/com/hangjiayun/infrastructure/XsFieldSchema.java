@@ -9,6 +9,10 @@ public class XsFieldSchema {
     private final Map<String, XsFieldMeta> fields = new HashMap<>();
     private final Map<XsFieldMeta.TYPE, String> typeMap = new HashMap<>();
     private final Map<Integer, String> vnoMap = new HashMap<>();
+    /**
+     * 索引文档的编码方案，首次使用时编译，字段变化后重新编译
+     */
+    private volatile XsIndexPlan indexPlan;
 
     public void addField(String field, Map<String, String> config) {
         this.addField(new XsFieldMeta(field, config), config);
@@ -25,6 +29,7 @@ public class XsFieldSchema {
             }
             this.typeMap.put(field.type, field.name);
         }
+        this.indexPlan = null;
         field.vno = (field.type == XsFieldMeta.TYPE.BODY) ? MIXED_VNO : this.vnoMap.size();
         this.vnoMap.put(field.vno, field.name);
         if (field.type == XsFieldMeta.TYPE.ID) {
@@ -100,6 +105,19 @@ public class XsFieldSchema {
         return this.fields.values().toArray(new XsFieldMeta[0]);
     }
 
+    /**
+     * 获取索引文档的编码方案
+     * @return 按字段序号排列的编码方案
+     */
+    XsIndexPlan getIndexPlan() {
+        XsIndexPlan plan = this.indexPlan;
+        if (plan == null) {
+            plan = new XsIndexPlan(this.getAllFields());
+            this.indexPlan = plan;
+        }
+        return plan;
+    }
+
     public Map<Integer, String> getVnoMap() {
         return this.vnoMap;
     }
@@ -0,0 +1,117 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 响应封包的流式解码器
+ * 从连接中读取的数据先存入一个可重复使用的接收缓冲区，每次读取尽可能多的数据，再从中依次切分出完整的封包，
+ * 切分出的封包的buf和buf1直接引用接收缓冲区而不复制，因此只在下一次{@link #readFrom}之前有效，需要保留时请调用{@link XsCommand#copy()}
+ */
+class XsFrameDecoder {
+    /**
+     * 超过初始大小该倍数的接收缓冲区在空闲时会被缩小回初始大小
+     */
+    private static final int SHRINK_FACTOR = 4;
+
+    private final int initialSize;
+    private final boolean direct;
+    /**
+     * 接收缓冲区，始终处于读模式，即position到limit之间为尚未解码的数据
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * @param size 接收缓冲区的初始大小，遇到更大的封包时会自动扩大
+     * @param direct 是否使用堆外内存作为接收缓冲区
+     */
+    XsFrameDecoder(int size, boolean direct) {
+        this.initialSize = Math.max(size, XsCommand.HEADER_SIZE);
+        this.direct = direct;
+        this.buffer = this.allocate(this.initialSize);
+        this.buffer.flip();
+    }
+
+    /**
+     * 切分出下一个完整的封包
+     * @return 封包，若缓冲区中的数据不足一个完整封包则返回null
+     */
+    XsCommand next() {
+        ByteBuffer buffer = this.buffer;
+        if (buffer.remaining() < XsCommand.HEADER_SIZE) {
+            return null;
+        }
+        int pos = buffer.position();
+        int size = this.frameSize();
+        if (buffer.remaining() < size) {
+            return null;
+        }
+        int blen1 = buffer.get(pos + 3) & 0xff;
+        int blen = size - XsCommand.HEADER_SIZE - blen1;
+        XsCommand res = new XsCommand(buffer.get(pos) & 0xff, buffer.get(pos + 1) & 0xff, buffer.get(pos + 2) & 0xff,
+                this.slice(pos + XsCommand.HEADER_SIZE, blen), this.slice(pos + XsCommand.HEADER_SIZE + blen, blen1));
+        buffer.position(pos + size);
+        return res;
+    }
+
+    /**
+     * 从通道中读取数据
+     * 读取前会整理缓冲区，此前切分出的封包将失效
+     * @param channel 可读通道
+     * @return 读到的字节数，通道已关闭时返回-1
+     * @throws IOException 读取出错时
+     */
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        int need = this.buffer.remaining() >= XsCommand.HEADER_SIZE ? this.frameSize() : XsCommand.HEADER_SIZE;
+        if (need > this.buffer.capacity()) {
+            this.resize(Math.max(need, this.buffer.capacity() * 2));
+        } else if (!this.buffer.hasRemaining() && this.buffer.capacity() >= this.initialSize * SHRINK_FACTOR) {
+            this.buffer = this.allocate(this.initialSize);
+        } else {
+            this.buffer.compact();
+        }
+        int num;
+        try {
+            num = channel.read(this.buffer);
+        } finally {
+            this.buffer.flip();
+        }
+        return num;
+    }
+
+    /**
+     * 计算缓冲区中下一个封包的总字节数，调用前需确保已有完整的封包头部
+     * @return 总字节数
+     */
+    private int frameSize() {
+        int pos = this.buffer.position();
+        int blen = this.buffer.getInt(pos + 4);
+        if (blen < 0 || blen > Integer.MAX_VALUE - XsCommand.HEADER_SIZE - 0xff) {
+            throw new XsException("Invalid respond length: " + Integer.toUnsignedString(blen));
+        }
+        return XsCommand.HEADER_SIZE + blen + (this.buffer.get(pos + 3) & 0xff);
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer dup = this.buffer.duplicate();
+        dup.limit(offset + length).position(offset);
+        return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * 扩大接收缓冲区并保留尚未解码的数据，返回后缓冲区处于写模式
+     * @param capacity 新的容量
+     */
+    private void resize(int capacity) {
+        ByteBuffer larger = this.allocate(capacity);
+        larger.put(this.buffer);
+        this.buffer = larger;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer = this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
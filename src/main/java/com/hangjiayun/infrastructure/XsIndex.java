@@ -1,17 +1,78 @@
 package com.hangjiayun.infrastructure;
 
 import java.lang.reflect.Array;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class XsIndex extends XsServer {
+    private static final XsCommand.Template SUBMIT = new XsCommand.Template(XsCmd.XS_CMD_INDEX_SUBMIT);
+    /**
+     * 并行编码时每块的文档数
+     */
+    private static final int PARALLEL_CHUNK = 256;
+    /**
+     * 分段提交（文件、批量删除等）时每段的默认字节数
+     */
+    private static final int EXDATA_CHUNK = 4 << 20;
+    /**
+     * 等待主服务器及全部同步索引服务器都执行完毕
+     */
+    public static final int CONSISTENCY_ALL = 0;
+    /**
+     * 只等待主服务器，同步索引服务器在后台执行，出错时通过{@link XsReplica#getFailures()}等获取
+     */
+    public static final int CONSISTENCY_PRIMARY = 1;
+    /**
+     * 等待主服务器及同步索引服务器合计过半数执行完毕，即主服务器加上(n+1)/2个同步索引服务器
+     */
+    public static final int CONSISTENCY_QUORUM = 2;
     private int bufSize = 0;
     private boolean rebuild = false;
-    private ArrayList<XsCommand> buf = new ArrayList();
-    private static ArrayList<XsServer> adds = new ArrayList<>();
+    /**
+     * 索引命令提交缓冲区，未开启时为null
+     */
+    private XsExdataBuffer buf;
+    /**
+     * 同步索引服务器，注意父类构造函数中建立连接时该字段尚未初始化
+     */
+    private ArrayList<XsReplica> replicas = new ArrayList<>();
+    /**
+     * 已进入主服务器发送缓冲区、尚未随其发出而转发到同步索引服务器的命令
+     */
+    private ArrayList<XsCommand> deferred = new ArrayList<>();
+    private int consistency = CONSISTENCY_ALL;
+    private int replicaQueueSize = 1024;
+    /**
+     * 文档变化检测，为null表示不检测
+     */
+    private XsChangeDetector changes;
+    /**
+     * 已进入缓冲区、尚未被服务端确认的文档哈希值，缓冲区提交成功后才记录到{@link #changes}
+     */
+    private final ArrayList<Change> pending = new ArrayList<>();
+    /**
+     * 缓冲区的预写日志，为null表示不记录
+     */
+    private XsSpool spool;
 
     public XsIndex(String conn, Xs xs) {
         super(conn, xs);
@@ -25,33 +86,218 @@ public class XsIndex extends XsServer {
         this(null, xs);
     }
 
+    @Override
+    protected String getConfigPrefix() {
+        return "server.index";
+    }
+
     /**
      * 增加一个同步索引服务器
+     * 命令由独立的线程转发到该服务器，在首次执行命令前可以直接设置返回的服务器对象
      * @param conn 索引服务端连接参数
-     * @return
+     * @return 同步索引服务器
      */
     public XsServer addServer(String conn) {
         XsServer srv = new XsServer(conn, this.xs);
-        adds.add(srv);
+        this.replicas.add(new XsReplica(srv, this.replicaQueueSize));
         return srv;
     }
 
+    /**
+     * 获取全部同步索引服务器，可用于查看各服务器的同步延迟及出错情况
+     * @return 同步索引服务器列表
+     */
+    public List<XsReplica> getReplicas() {
+        return this.replicas == null ? List.of() : Collections.unmodifiableList(this.replicas);
+    }
+
+    /**
+     * 设置执行命令时等待同步索引服务器的方式
+     * @param consistency {@link #CONSISTENCY_ALL}、{@link #CONSISTENCY_PRIMARY}或{@link #CONSISTENCY_QUORUM}
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex setConsistency(int consistency) {
+        if (consistency < CONSISTENCY_ALL || consistency > CONSISTENCY_QUORUM) {
+            throw new XsException("Invalid consistency of index replicas: " + consistency);
+        }
+        this.consistency = consistency;
+        return this;
+    }
+
+    public int getConsistency() {
+        return this.consistency;
+    }
+
+    /**
+     * 设置此后增加的同步索引服务器的队列长度，队列已满时执行命令会被阻塞
+     * @param size 命令数，默认为1024
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex setReplicaQueueSize(int size) {
+        this.replicaQueueSize = Math.max(1, size);
+        return this;
+    }
+
     /**
      * 执行服务器端指令并获取返回值
-     * 重写此方法是为了同步到额外增加的多个索引服务器
+     * 重写此方法是为了同步到额外增加的多个索引服务器，主服务器执行成功后才转发到各服务器，按{@link #setConsistency}等待
+     * 不需要响应的命令（0x80以上）随主服务器下一次发送一起转发
      * @param cmd
      * @param resArg
      * @param resCmd
      * @return
      */
     public XsCommand execCommand(XsCommand cmd, int resArg, int resCmd) {
+        if (this.replicas == null || this.replicas.isEmpty()) {
+            return super.execCommand(cmd, resArg, resCmd);
+        }
+        if ((cmd.cmd & 0x80) != 0) {
+            this.deferred.add(cmd);
+            return super.execCommand(cmd, resArg, resCmd);
+        }
+        List<XsCommand> batch = this.takeDeferred();
         XsCommand res = super.execCommand(cmd, resArg, resCmd);
-        for (XsServer srv : adds) {
-            srv.execCommand(cmd, resArg, resCmd);
+        try {
+            this.replicate(batch, cmd, resArg, resCmd).join();
+        } catch (CompletionException e) {
+            throw replicaError(e);
         }
         return res;
     }
 
+    /**
+     * 异步执行服务器端指令
+     * 重写此方法是为了同步到额外增加的多个索引服务器，主服务器执行成功后才转发到各服务器，满足{@link #setConsistency}的要求后才完成
+     * @param cmd
+     * @param resArg
+     * @param resCmd
+     * @return
+     */
+    @Override
+    public CompletableFuture<XsCommand> execCommandAsync(XsCommand cmd, int resArg, int resCmd) {
+        if (this.replicas == null || this.replicas.isEmpty()) {
+            return super.execCommandAsync(cmd, resArg, resCmd);
+        }
+        if ((cmd.cmd & 0x80) != 0) {
+            this.deferred.add(cmd);
+            return super.execCommandAsync(cmd, resArg, resCmd);
+        }
+        List<XsCommand> batch = this.takeDeferred();
+        // 同一连接的响应按发送顺序完成，因此各服务器收到的命令顺序与主服务器一致
+        return super.execCommandAsync(cmd, resArg, resCmd)
+                .thenCompose(res -> this.replicate(batch, cmd, resArg, resCmd).thenApply(v -> res));
+    }
+
+    /**
+     * 关闭连接，同时关闭所有同步索引服务器的连接
+     * 主服务器正常关闭时会发出缓冲的命令，这些命令同样转发到各服务器，各服务器会先执行完队列中剩余的命令
+     * @param ioError 是否因为IO错误而关闭
+     */
+    @Override
+    public void close(boolean ioError) {
+        try {
+            super.close(ioError);
+            if (!ioError && this.replicas != null) {
+                this.forward(this.takeDeferred());
+            }
+        } finally {
+            if (this.deferred != null) {
+                this.deferred.clear();
+            }
+            if (this.replicas != null) {
+                for (XsReplica replica : this.replicas) {
+                    replica.close(ioError);
+                }
+            }
+        }
+    }
+
+    /**
+     * 归还到连接池前关闭缓冲区并清除重建状态、变化检测及预写日志的设置
+     * 缓冲区中还有未提交的数据时无法还原，连接池会直接关闭该连接，这些数据不会被提交
+     * @return 可以继续复用时返回true
+     */
+    @Override
+    boolean reset() {
+        if (!super.reset() || (this.buf != null && !this.buf.isEmpty())) {
+            return false;
+        }
+        this.bufSize = 0;
+        this.rebuild = false;
+        this.changes = null;
+        this.pending.clear();
+        this.spool = null;
+        return true;
+    }
+
+    /**
+     * 把主服务器已执行成功的命令提交到全部同步索引服务器
+     * @param batch 在此之前缓冲的不需要响应的命令
+     * @return 满足一致性要求后完成的Future
+     */
+    private CompletableFuture<Void> replicate(List<XsCommand> batch, XsCommand cmd, int resArg, int resCmd) {
+        this.forward(batch);
+        int n = this.replicas.size();
+        CompletableFuture<?>[] all = new CompletableFuture<?>[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = this.replicas.get(i).submit(cmd, resArg, resCmd);
+        }
+        if (this.consistency == CONSISTENCY_PRIMARY) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (this.consistency == CONSISTENCY_ALL) {
+            return CompletableFuture.allOf(all);
+        }
+        // 足够数量成功即完成，失败数使得无法再达到时以该异常完成
+        int need = (n + 1) / 2;
+        CompletableFuture<Void> quorum = new CompletableFuture<>();
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        for (CompletableFuture<?> future : all) {
+            future.whenComplete((v, e) -> {
+                if (e == null) {
+                    if (succeeded.incrementAndGet() == need) {
+                        quorum.complete(null);
+                    }
+                } else if (failed.incrementAndGet() == n - need + 1) {
+                    quorum.completeExceptionally(e);
+                }
+            });
+        }
+        return quorum;
+    }
+
+    /**
+     * 把不需要响应的命令提交到全部同步索引服务器，这些命令只进入各服务器的发送缓冲区
+     */
+    private void forward(List<XsCommand> batch) {
+        for (XsReplica replica : this.replicas) {
+            for (XsCommand cmd : batch) {
+                replica.submit(cmd, XsCmd.XS_CMD_NONE, XsCmd.XS_CMD_OK);
+            }
+        }
+    }
+
+    /**
+     * 取出已进入主服务器发送缓冲区、尚未转发的命令
+     */
+    private List<XsCommand> takeDeferred() {
+        if (this.deferred == null || this.deferred.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<XsCommand> batch = new ArrayList<>(this.deferred);
+        this.deferred.clear();
+        return batch;
+    }
+
+    private static XsException replicaError(CompletionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof XsException) {
+            return (XsException) cause;
+        }
+        return new XsException("Failed to sync index replica", cause);
+    }
+
     public XsCommand execCommand(XsCommand cmd, int resArg) {
         return this.execCommand(cmd, resArg, XsCmd.XS_CMD_OK);
     }
@@ -77,23 +323,69 @@ public class XsIndex extends XsServer {
         return true;
     }
 
+    /**
+     * 设置文档变化检测
+     * 设置后添加或更新文档时，若文档编码后的内容与该主键上次提交的完全相同则跳过（也不调用{@link XsDocument#afterSubmit}），
+     * 重建索引期间不跳过但仍然记录；按主键删除文档时删除对应的记录，按其他字段删除文档或清空索引时清空全部记录
+     * @param changes 变化检测，为null时不检测
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex setChangeDetector(XsChangeDetector changes) {
+        this.changes = changes;
+        this.pending.clear();
+        return this;
+    }
+
+    public XsChangeDetector getChangeDetector() {
+        return this.changes;
+    }
+
+    /**
+     * 设置缓冲区的预写日志
+     * 设置后进入缓冲区的命令先追加到日志，缓冲区提交成功后截断；设置时若日志中有上次未确认的数据，先将其重新提交
+     * 应在开启缓冲区前设置，同一个日志同一时间只能由一个索引对象使用
+     * @param spool 预写日志，为null时不记录
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex setSpool(XsSpool spool) {
+        if (spool != null && !spool.isEmpty()) {
+            spool.replay(data -> this.submitExdata(this.detach(data)));
+        }
+        this.spool = spool;
+        return this;
+    }
+
+    public XsSpool getSpool() {
+        return this.spool;
+    }
+
     /**
      * 开启索引命令提交缓冲区
      * 为优化网络性能，有必要先将本地提交的 add/update/del 等索引变动指令缓存下来
      * 当总大小达到参数指定的 size 时或调用{@link XsIndex#closeBuffer}时再真正提交到服务器
      * 注意：此举常用于需要大批量更新索引时，此外重复调用本函数是无必要的
      * @param size 缓冲区大小，单位MB，默认为4MB
+     * @param direct 是否使用堆外内存，大批量导入时可以减轻GC的负担
      * @return 返回自身对象以支持串接操作
      */
-    public XsIndex openBuffer(int size) {
-        if (!this.buf.isEmpty()) {
-            this.addExdata(this.buf, false);
+    public XsIndex openBuffer(int size, boolean direct) {
+        if (this.buf != null && !this.buf.isEmpty()) {
+            this.submitBuffer();
         }
         this.bufSize = size << 20;
-        this.buf.clear();
+        if (this.bufSize <= 0) {
+            this.buf = null;
+        } else if (this.buf == null || this.buf.isDirect() != direct) {
+            // 超过初始容量后按需扩大，以免开启较大的缓冲区时预先占用全部内存
+            this.buf = new XsExdataBuffer(Math.min(this.bufSize, 4 << 20), direct);
+        }
         return this;
     }
 
+    public XsIndex openBuffer(int size) {
+        return this.openBuffer(size, false);
+    }
+
     public XsIndex openBuffer() {
         return this.openBuffer(4);
     }
@@ -115,6 +407,9 @@ public class XsIndex extends XsServer {
      */
     public XsIndex clean() {
         this.execCommand(new XsCommand(XsCmd.XS_CMD_INDEX_CLEAN_DB, XsCmd.XS_CMD_OK_DB_CLEAN));
+        if (this.changes != null) {
+            this.changes.clear();
+        }
         return this;
     }
 
@@ -131,6 +426,15 @@ public class XsIndex extends XsServer {
         return this;
     }
 
+    /**
+     * 标记服务端已处于重建索引状态，用于在另一个连接上完成或中止之前开始的重建
+     * @return 返回自身对象以支持串接操作
+     */
+    XsIndex continueRebuild() {
+        this.rebuild = true;
+        return this;
+    }
+
     /**
      * 完成并关闭重建索引
      * 重建完成后调用，用重建好的索引数据代替旧的索引数据
@@ -184,9 +488,347 @@ public class XsIndex extends XsServer {
     }
 
     public XsIndex update(XsDocument doc, boolean add) {
+        ArrayList<XsCommand> cmds = this.encode(doc, add);
+        if (cmds == null) {
+            return this;
+        }
+        Change change = this.detectChange(doc, cmds);
+        if (change != null && change.unchanged) {
+            return this;
+        }
+
+        //execute cmd
+        if (this.bufSize > 0) {
+            if (change != null) {
+                this.pending.add(change);
+            }
+            this.appendBuffer(cmds);
+        } else {
+            int i = 0;
+            for (; i < cmds.size()-1; i++) {
+                this.execCommand(cmds.get(i));
+            }
+            this.execCommand(cmds.get(i), XsCmd.XS_CMD_OK_RQST_FINISHED);
+            if (change != null) {
+                this.changes.put(change.key, change.hash);
+            }
+        }
+
+        //after submit
+        doc.afterSubmit(this);
+        return this;
+    }
+
+    /**
+     * 删除主键为指定值的文档
+     * 多个值会合并为一个XS_CMD_INDEX_EXDATA提交，开启缓冲区时则进入缓冲区
+     * @param ids 主键值
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex del(String... ids) {
+        return this.del(Arrays.asList(ids), null);
+    }
+
+    /**
+     * 删除指定字段包含指定词的文档
+     * 多个词会合并为XS_CMD_INDEX_EXDATA分段提交，开启缓冲区时则进入缓冲区
+     * @param terms 词，会被转为小写，重复的词只删除一次
+     * @param field 字段名称，为null时为主键字段
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex del(Collection<String> terms, String field) {
+        XsFieldMeta meta = field == null ? this.xs.getFieldId() : this.xs.getField(field);
+        boolean byId = meta == this.xs.getFieldId();
+        LinkedHashSet<String> unique = new LinkedHashSet<>(terms);
+        ArrayList<XsCommand> cmds = new ArrayList<>(unique.size());
+        for (String term : unique) {
+            ByteBuffer buf = ByteBuffer.wrap(term.toLowerCase().getBytes(StandardCharsets.UTF_8));
+            cmds.add(new XsCommand(XsCmd.XS_CMD_INDEX_REMOVE, 0, meta.vno, buf));
+            if (this.changes != null && byId) {
+                this.changes.remove(term);
+            }
+        }
+        if (this.changes != null && !cmds.isEmpty()) {
+            // 缓冲区中在此之前的同一文档会先于删除提交，不能在提交后再记录其哈希值
+            if (byId) {
+                this.pending.removeIf(change -> unique.contains(change.key));
+            } else {
+                // 无法得知被删除的是哪些文档
+                this.pending.clear();
+                this.changes.clear();
+            }
+        }
+        this.submitCommands(cmds);
+        return this;
+    }
+
+    /**
+     * 添加同义词
+     * 开启缓冲区时进入缓冲区，否则直接提交
+     * @param raw 原词，会去掉首尾空白
+     * @param synonym 同义词，会去掉首尾空白
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex addSynonym(String raw, String synonym) {
+        return this.addSynonyms(Collections.singletonMap(raw, Collections.singletonList(synonym)));
+    }
+
+    /**
+     * 批量添加同义词
+     * 开启缓冲区时逐个进入缓冲区，否则以XS_CMD_INDEX_EXDATA分段提交
+     * @param synonyms 原词及其同义词，空白的原词或同义词会被忽略
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex addSynonyms(Map<String, ? extends Collection<String>> synonyms) {
+        ArrayList<XsCommand> cmds = new ArrayList<>(synonyms.size());
+        for (Map.Entry<String, ? extends Collection<String>> entry : synonyms.entrySet()) {
+            String raw = entry.getKey() == null ? "" : entry.getKey().trim();
+            if (raw.isEmpty() || entry.getValue() == null) {
+                continue;
+            }
+            for (String synonym : entry.getValue()) {
+                synonym = synonym == null ? "" : synonym.trim();
+                if (!synonym.isEmpty()) {
+                    cmds.add(synonymCommand(XsCmd.XS_CMD_INDEX_SYNONYMS_ADD, raw + "\t" + synonym));
+                }
+            }
+        }
+        this.submitCommands(cmds);
+        return this;
+    }
+
+    /**
+     * 删除同义词
+     * @param raw 原词
+     * @param synonym 要删除的同义词，为null时删除该原词的全部同义词
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex delSynonym(String raw, String synonym) {
+        return this.delSynonyms(Collections.singletonMap(raw, synonym == null ? null : List.of(synonym)));
+    }
+
+    public XsIndex delSynonym(String raw) {
+        return this.delSynonym(raw, null);
+    }
+
+    /**
+     * 批量删除同义词
+     * 开启缓冲区时逐个进入缓冲区，否则以XS_CMD_INDEX_EXDATA分段提交
+     * @param synonyms 原词及要删除的同义词，同义词为null或空时删除该原词的全部同义词
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex delSynonyms(Map<String, ? extends Collection<String>> synonyms) {
+        ArrayList<XsCommand> cmds = new ArrayList<>(synonyms.size());
+        for (Map.Entry<String, ? extends Collection<String>> entry : synonyms.entrySet()) {
+            String raw = entry.getKey() == null ? "" : entry.getKey().trim();
+            if (raw.isEmpty()) {
+                continue;
+            }
+            if (entry.getValue() == null || entry.getValue().isEmpty()) {
+                cmds.add(synonymCommand(XsCmd.XS_CMD_INDEX_SYNONYMS_DEL, raw));
+                continue;
+            }
+            for (String synonym : entry.getValue()) {
+                synonym = synonym == null ? "" : synonym.trim();
+                cmds.add(synonymCommand(XsCmd.XS_CMD_INDEX_SYNONYMS_DEL, synonym.isEmpty() ? raw : raw + "\t" + synonym));
+            }
+        }
+        this.submitCommands(cmds);
+        return this;
+    }
+
+    private static XsCommand synonymCommand(int arg1, String buf) {
+        return new XsCommand(XsCmd.XS_CMD_INDEX_SYNONYMS, arg1, 0, ByteBuffer.wrap(buf.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 获取自定义词典内容
+     * @return 词典内容
+     */
+    public String getCustomDict() {
+        XsCommand res = this.execCommand(new XsCommand(XsCmd.XS_CMD_INDEX_USER_DICT), XsCmd.XS_CMD_OK_INFO);
+        return res.getBufString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 设置自定义词典，替换原有的全部内容
+     * @param content 词典内容，每行一个词，格式参见服务端的说明
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex setCustomDict(String content) {
+        return this.setCustomDict(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 以文件内容设置自定义词典，替换原有的全部内容
+     * 文件映射到内存后直接发送，不读入堆内存
+     * @param file 词典文件，编码必须是UTF-8
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex setCustomDict(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new XsException("Too large custom dict file: " + file);
+            }
+            return this.setCustomDict(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new XsException("Failed to read custom dict file: " + file, e);
+        }
+    }
+
+    private XsIndex setCustomDict(ByteBuffer content) {
+        this.execCommand(new XsCommand(XsCmd.XS_CMD_INDEX_USER_DICT, 1, 0, content), XsCmd.XS_CMD_OK_DICT_SAVED);
+        return this;
+    }
+
+    public XsIndex addAll(Iterable<? extends XsDocument> docs) {
+        return this.updateAll(docs, true, ForkJoinPool.commonPool());
+    }
+
+    public XsIndex updateAll(Iterable<? extends XsDocument> docs) {
+        return this.updateAll(docs, false, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 并行编码并批量提交文档
+     * 文档按顺序每{@value #PARALLEL_CHUNK}个分为一块，各块由线程池并行编码为封包数据，当前连接作为唯一的写入方按原顺序逐块以EXDATA提交，
+     * 同时进行编码的块数不超过线程池并行度的2倍，以免文档读取过快时占用过多内存
+     * 文档的{@link XsDocument#beforeSubmit}会在线程池中调用，{@link XsDocument#afterSubmit}则在所在块提交成功后在调用线程中调用
+     * 出错时之前的块已经提交，之后的块不再提交；流式数据可以传入stream::iterator
+     * @param docs 文档
+     * @param add 是否为添加，否则为更新
+     * @param pool 编码使用的线程池
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex updateAll(Iterable<? extends XsDocument> docs, boolean add, ForkJoinPool pool) {
+        // 先提交缓冲区中已有的数据以保持顺序
+        if (this.buf != null && !this.buf.isEmpty()) {
+            this.submitBuffer();
+        }
+        int window = Math.max(2, pool.getParallelism() * 2);
+        Iterator<? extends XsDocument> it = docs.iterator();
+        ArrayDeque<CompletableFuture<Chunk>> encoding = new ArrayDeque<>();
+        try {
+            while (it.hasNext() || !encoding.isEmpty()) {
+                while (encoding.size() < window && it.hasNext()) {
+                    List<XsDocument> chunk = new ArrayList<>(PARALLEL_CHUNK);
+                    while (chunk.size() < PARALLEL_CHUNK && it.hasNext()) {
+                        chunk.add(it.next());
+                    }
+                    encoding.add(CompletableFuture.supplyAsync(() -> this.encode(chunk, add), pool));
+                }
+                Chunk chunk = this.await(encoding.poll());
+                if (chunk.data.hasRemaining()) {
+                    this.submitExdata(chunk.data);
+                }
+                this.commitChanges(chunk.changes);
+                for (XsDocument doc : chunk.docs) {
+                    doc.afterSubmit(this);
+                }
+            }
+        } finally {
+            for (CompletableFuture<Chunk> future : encoding) {
+                future.cancel(false);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 编码一块文档
+     * @param docs 文档
+     * @param add 是否为添加
+     * @return 编码结果，不包括{@link XsDocument#beforeSubmit}返回false的文档
+     */
+    private Chunk encode(List<XsDocument> docs, boolean add) {
+        XsExdataBuffer data = new XsExdataBuffer(0, false);
+        List<XsDocument> encoded = new ArrayList<>(docs.size());
+        List<Change> changes = new ArrayList<>(this.changes == null ? 0 : docs.size());
+        for (XsDocument doc : docs) {
+            List<XsCommand> cmds = this.encode(doc, add);
+            if (cmds == null) {
+                continue;
+            }
+            Change change = this.detectChange(doc, cmds);
+            if (change != null) {
+                if (change.unchanged) {
+                    continue;
+                }
+                changes.add(change);
+            }
+            data.append(cmds);
+            encoded.add(doc);
+        }
+        return new Chunk(encoded, data.view(), changes);
+    }
+
+    /**
+     * 已编码的一块文档
+     */
+    private static final class Chunk {
+        private final List<XsDocument> docs;
+        private final ByteBuffer data;
+        private final List<Change> changes;
+
+        Chunk(List<XsDocument> docs, ByteBuffer data, List<Change> changes) {
+            this.docs = docs;
+            this.data = data;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * 检测文档是否有变化
+     * @param doc 文档
+     * @param cmds 文档的全部命令
+     * @return 未设置变化检测时为null
+     */
+    private Change detectChange(XsDocument doc, List<XsCommand> cmds) {
+        XsChangeDetector changes = this.changes;
+        if (changes == null) {
+            return null;
+        }
+        // 不包括首尾的XS_CMD_INDEX_REQUEST及XS_CMD_INDEX_SUBMIT，添加与更新同一文档的哈希值相同
+        String key = doc.f(this.xs.getFieldId().name);
+        long hash = XsChangeDetector.hash(cmds.subList(1, cmds.size() - 1));
+        return new Change(key, hash, !this.rebuild && changes.isUnchanged(key, hash));
+    }
+
+    private void commitChanges(List<Change> list) {
+        XsChangeDetector changes = this.changes;
+        if (changes != null) {
+            for (Change change : list) {
+                changes.put(change.key, change.hash);
+            }
+        }
+    }
+
+    /**
+     * 文档的主键及哈希值
+     */
+    private static final class Change {
+        private final String key;
+        private final long hash;
+        private final boolean unchanged;
+
+        Change(String key, long hash, boolean unchanged) {
+            this.key = key;
+            this.hash = hash;
+            this.unchanged = unchanged;
+        }
+    }
+
+    /**
+     * 生成添加或更新文档的全部命令：XS_CMD_INDEX_REQUEST、各字段的索引命令及XS_CMD_INDEX_SUBMIT
+     * 只做编码，不涉及连接，因此也可以由未连接的对象调用
+     * @param doc 文档
+     * @param add 是否为添加，否则为更新
+     * @return 命令列表，文档的{@link XsDocument#beforeSubmit}返回false时返回null
+     */
+    ArrayList<XsCommand> encode(XsDocument doc, boolean add) {
         //before submit
         if (!doc.beforeSubmit(this)) {
-            return this;
+            return null;
         }
 
         XsFieldMeta fid = this.xs.getFieldId();
@@ -206,108 +848,49 @@ public class XsIndex extends XsServer {
         cmds.add(cmd);
 
         //document cmds
-        for (XsFieldMeta field : this.xs.getAllFields()) {
-            String value = doc.f(field.name);
-            if (value != null) {
-                int varg = field.isNumeric() ? XsCmd.XS_CMD_VALUE_FLAG_NUMERIC : 0;
-                value = field.val(value);
-                if (!field.hasCustomTokenizer()) {
-                    //internal tokenizer
-                    int wdf = field.weight | (field.withPos() ? XsCmd.XS_CMD_INDEX_FLAG_WITHPOS : 0);
-                    if (field.hasIndexMixed()) {
-                        cmds.add(new XsCommand(XsCmd.XS_CMD_DOC_INDEX, wdf, XsFieldSchema.MIXED_VNO, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8))));
-                    }
-                    if (field.hasIndexSelf()) {
-                        wdf |= field.isNumeric() ? 0 : XsCmd.XS_CMD_INDEX_FLAG_SAVEVALUE;
-                        cmds.add(new XsCommand(XsCmd.XS_CMD_DOC_INDEX, wdf, field.vno, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8))));
-                    }
-                    //add value
-                    if (!field.hasIndexSelf() || field.isNumeric()) {
-                        cmds.add(new XsCommand(XsCmd.XS_CMD_DOC_VALUE, varg, field.vno, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8))));
-                    }
-                } else {
-                    // add index
-                    if (field.hasIndex()) {
-                         String[] terms = field.getCustomTokenizer().getTokens(value, doc);
-                         //self: [bool term, NOT weight, NOT stem, NOT pos]
-                        if (field.hasIndexSelf()) {
-                            int wdf = field.isBoolIndex() ? 1 : (field.weight | XsCmd.XS_CMD_INDEX_FLAG_CHECKSTEM);
-                            for (String term : terms) {
-                                //注意要计算其utf8编码下占用的字节数
-                                if (term.getBytes(StandardCharsets.UTF_8).length > 200) {
-                                    continue;
-                                }
-                                term = term.toLowerCase();
-                                cmds.add(new XsCommand(XsCmd.XS_CMD_DOC_TERM, wdf, field.vno, ByteBuffer.wrap(term.getBytes(StandardCharsets.UTF_8))));
-                            }
-                        }
-                        // mixed: [use default tokenizer]
-                        if (field.hasIndexMixed()) {
-                            String mtext = String.join(" ", terms);
-                            cmds.add(new XsCommand(XsCmd.XS_CMD_DOC_INDEX, field.weight, XsFieldSchema.MIXED_VNO, ByteBuffer.wrap(mtext.getBytes(StandardCharsets.UTF_8))));
-                        }
-                    }
-                    // add value
-                    cmds.add(new XsCommand(XsCmd.XS_CMD_DOC_VALUE, varg, field.vno, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8))));
-                }
-            }
-            // process add terms
-            Map<String, Integer> terms = doc.getAddTerms(field);
-            if (terms != null) {
-                int wdf1 = field.isBoolIndex() ? 0 : XsCmd.XS_CMD_INDEX_FLAG_CHECKSTEM;
-                for (Map.Entry<String, Integer> entry : terms.entrySet()) {
-                    String term = entry.getKey().toLowerCase();
-                    byte[] termBytes = term.getBytes(StandardCharsets.UTF_8);
-                    if (termBytes.length > 200) {
-                        continue;
-                    }
-                    int wdf2 = field.isBoolIndex() ? 1 : entry.getValue() * field.weight;
-                    while (wdf2 > XsFieldMeta.MAX_WDF) {
-                        cmds.add(new XsCommand(XsCmd.XS_CMD_DOC_TERM, wdf1|XsFieldMeta.MAX_WDF, field.vno, ByteBuffer.wrap(termBytes)));
-                        wdf2 -= XsFieldMeta.MAX_WDF;
-                    }
-                    cmds.add(new XsCommand(XsCmd.XS_CMD_DOC_TERM, wdf1|wdf2, field.vno, ByteBuffer.wrap(termBytes)));
-                }
-            }
-            // process add text
-            String text = doc.getAddIndex(field);
-            if (text != null) {
-                byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
-                if (!field.hasCustomTokenizer()) {
-                    int wdf = field.weight | (field.withPos() ? XsCmd.XS_CMD_INDEX_FLAG_WITHPOS : 0);
-                    cmds.add(new XsCommand(XsCmd.XS_CMD_DOC_INDEX, wdf,field.vno, ByteBuffer.wrap(textBytes)));
-                } else {
-                    // NOT pos
-                    int wdf = field.isBoolIndex() ? 1 : (field.weight | XsCmd.XS_CMD_INDEX_FLAG_CHECKSTEM);
-                    String[] xterms = field.getCustomTokenizer().getTokens(text, doc);
-                    for (String term : xterms) {
-                        byte[] termBytes = term.toLowerCase().getBytes(StandardCharsets.UTF_8);
-                        if (termBytes.length > 200) {
-                            continue;
-                        }
-                        cmds.add(new XsCommand(XsCmd.XS_CMD_DOC_TERM, wdf, field.vno, ByteBuffer.wrap(termBytes)));
-                    }
-                }
-            }
-        }
+        this.xs.getSchema().getIndexPlan().encode(doc, cmds);
 
         //submit cmd
-        cmds.add(new XsCommand(XsCmd.XS_CMD_INDEX_SUBMIT));
+        cmds.add(SUBMIT.create());
+        return cmds;
+    }
 
-        //execute cmd
+    /**
+     * 提交多个相互独立、均可作为EXDATA开头的命令（如XS_CMD_INDEX_REMOVE）
+     * 开启缓冲区时逐个追加到缓冲区；否则单个命令直接执行，多个命令以XS_CMD_INDEX_EXDATA按{@link #EXDATA_CHUNK}分段提交
+     * @param cmds 命令
+     */
+    private void submitCommands(List<XsCommand> cmds) {
+        if (cmds.isEmpty()) {
+            return;
+        }
         if (this.bufSize > 0) {
-            this.appendBuffer(cmds);
+            for (XsCommand cmd : cmds) {
+                this.appendBuffer(cmd);
+            }
+        } else if (cmds.size() == 1) {
+            this.execCommand(cmds.get(0), XsCmd.XS_CMD_OK_RQST_FINISHED);
         } else {
-            int i = 0;
-            for (; i < cmds.size()-1; i++) {
-                this.execCommand(cmds.get(i));
+            XsExdataBuffer data = new XsExdataBuffer(0, false);
+            for (XsCommand cmd : cmds) {
+                if (!data.isEmpty() && data.length() + cmd.getEncodedLength() > EXDATA_CHUNK) {
+                    this.submitExdata(this.detach(data.view()));
+                    data.clear();
+                }
+                data.append(cmd);
             }
-            this.execCommand(cmds.get(i), XsCmd.XS_CMD_OK_RQST_FINISHED);
+            this.submitExdata(data.view());
         }
+    }
 
-        //after submit
-        doc.afterSubmit(this);
-        return this;
+    private void appendBuffer(XsCommand cmd) {
+        if (this.spool != null) {
+            this.spool.append(cmd);
+        }
+        this.buf.append(cmd);
+        if (this.buf.length() > this.bufSize) {
+            this.submitBuffer();
+        }
     }
 
     /**
@@ -316,56 +899,156 @@ public class XsIndex extends XsServer {
      * @param buf 命令封包数组
      */
     private void appendBuffer(ArrayList<XsCommand> buf) {
-        this.buf.addAll(buf);
-        int bufSize = 0;
-        for (XsCommand xsCommand : this.buf) {
-            bufSize += xsCommand.toBytes().capacity();
+        if (this.spool != null) {
+            this.spool.append(buf);
         }
-        if (bufSize > this.bufSize) {
-            this.addExdata(this.buf, false);
-            this.buf.clear();
+        this.buf.append(buf);
+        if (this.buf.length() > this.bufSize) {
+            this.submitBuffer();
         }
     }
 
+    /**
+     * 提交缓冲区中的全部数据并清空缓冲区，成功后截断预写日志并记录其中文档的哈希值
+     */
+    private void submitBuffer() {
+        this.submitExdata(this.detach(this.buf.view()));
+        this.buf.clear();
+        if (this.spool != null) {
+            this.spool.trim();
+        }
+        this.commitChanges(this.pending);
+        this.pending.clear();
+    }
+
     /**
      * 批量提交索引命令封包数据
      * 把多个命令封包内容连续保存为文件或变量，然后一次性提交以减少网络开销提升性能
-     * @param data 要提交的命令封包数据，或存储命令封包的文件路径，编码必须已经是UTF-8
-     * @param checkFile 是否检测参数为文件的情况
+     * @param data 要提交的命令封包，编码必须已经是UTF-8
+     * @param checkFile 列表形式的数据不会是文件，该参数已无作用，提交文件请使用{@link #addExdata(Path)}
      * @return 返回自身对象以支持串接操作
      */
     public XsIndex addExdata(ArrayList<XsCommand> data, boolean checkFile) {
-        if (checkFile) {
-            //todo: 暂未实现该部分逻辑
-            throw new XsException("Failed to read exdata from file");
-        }
-
-        // try to check allowed (BUG: check the first cmd only):
-        // XS_CMD_IMPORT_HEADER, XS_CMD_INDEX_REQUEST, XS_CMD_INDEX_REMOVE, XS_CMD_INDEX_EXDATA
-        XsCommand first = data.get(0);
-        if (first.cmd != XsCmd.XS_CMD_IMPORT_HEADER
-                && first.cmd != XsCmd.XS_CMD_INDEX_REQUEST
-                && first.cmd != XsCmd.XS_CMD_INDEX_SYNONYMS
-                && first.cmd != XsCmd.XS_CMD_INDEX_REMOVE
-                && first.cmd != XsCmd.XS_CMD_INDEX_EXDATA
-        ) {
-            throw new XsException("Invalid start command of exdata (CMD: "+first.cmd+")");
-        }
-
-        //create cmd & execute it
-        XsCommand cmd = new XsCommand(XsCmd.XS_CMD_INDEX_EXDATA);
         int totalCapacity = 0;
         for(XsCommand command : data) {
-            totalCapacity += command.toBytes().capacity();
+            totalCapacity += command.getEncodedLength();
         }
-        cmd.buf = ByteBuffer.allocate(totalCapacity);
+        ByteBuffer buf = ByteBuffer.allocate(totalCapacity);
         for (XsCommand command : data) {
-            cmd.buf.put(command.toBytes());
+            command.encodeTo(buf);
+        }
+        this.submitExdata(buf.flip());
+        return this;
+    }
+
+    /**
+     * 批量提交文件中的索引命令封包
+     * 文件通常由连接参数为file://的XsIndex写出，内容为连续的命令封包；
+     * 文件分段映射到内存，每段以一个XS_CMD_INDEX_EXDATA命令直接从映射区发送，不读入堆内存。
+     * 分段只在可以作为EXDATA开头的封包（如XS_CMD_INDEX_REQUEST）之前切分，因此同一文档的命令总在同一段中
+     * 每段的大小为{@link #openBuffer}设置的缓冲区大小，未开启缓冲区时为4MB，超过该大小的单个文档独占一段
+     * @param file 命令封包文件
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsIndex addExdata(Path file) {
+        int chunk = this.bufSize > 0 ? this.bufSize : EXDATA_CHUNK;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long pos = 0;
+            long window = chunk;
+            while (pos < size) {
+                long len = Math.min(window, size - pos);
+                if (len > Integer.MAX_VALUE) {
+                    throw new XsException("Too large document in exdata file at offset " + pos + ": " + file);
+                }
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                int cut = cutExdata(map, pos + len == size);
+                if (cut < 0) {
+                    throw new XsException("Truncated exdata file: " + file);
+                }
+                if (cut == 0) {
+                    // 首个文档超过分段大小，扩大映射范围后重试
+                    window = len << 1;
+                    continue;
+                }
+                this.submitExdata(map.limit(cut));
+                pos += cut;
+                window = chunk;
+            }
+        } catch (IOException e) {
+            throw new XsException("Failed to read exdata file: " + file, e);
         }
-        this.execCommand(cmd, XsCmd.XS_CMD_OK_RQST_FINISHED);
         return this;
     }
 
+    /**
+     * 计算可以作为一段提交的长度
+     * @param data 从0开始的封包数据，字节序为小端
+     * @param eof 数据是否到达文件末尾
+     * @return 最后一个可作为EXDATA开头的封包之前的长度；到达文件末尾时为全部长度；
+     *         0表示其中没有可切分的位置，-1表示文件末尾的封包不完整
+     */
+    private static int cutExdata(ByteBuffer data, boolean eof) {
+        int pos = 0;
+        int cut = 0;
+        while (data.limit() - pos >= XsCommand.HEADER_SIZE) {
+            if (pos > 0 && isExdataStart(data.get(pos) & 0xff)) {
+                cut = pos;
+            }
+            long len = XsCommand.HEADER_SIZE + (data.get(pos + 3) & 0xffL) + (data.getInt(pos + 4) & 0xffffffffL);
+            if (len > data.limit() - pos) {
+                break;
+            }
+            pos += (int) len;
+        }
+        if (eof) {
+            return pos == data.limit() ? pos : -1;
+        }
+        return cut;
+    }
+
+    /**
+     * 判断命令能否作为EXDATA的第一个命令
+     * XS_CMD_IMPORT_HEADER, XS_CMD_INDEX_REQUEST, XS_CMD_INDEX_SYNONYMS, XS_CMD_INDEX_REMOVE, XS_CMD_INDEX_EXDATA
+     */
+    private static boolean isExdataStart(int cmd) {
+        return cmd == XsCmd.XS_CMD_IMPORT_HEADER
+                || cmd == XsCmd.XS_CMD_INDEX_REQUEST
+                || cmd == XsCmd.XS_CMD_INDEX_SYNONYMS
+                || cmd == XsCmd.XS_CMD_INDEX_REMOVE
+                || cmd == XsCmd.XS_CMD_INDEX_EXDATA;
+    }
+
+    /**
+     * 以一个XS_CMD_INDEX_EXDATA命令提交已编码的命令封包
+     * 数据作为命令的主数据直接发送，不再复制；提交后会重用的缓冲区须先经{@link #detach}处理
+     * @param data 从position到limit为连续的命令封包
+     */
+    void submitExdata(ByteBuffer data) {
+        // try to check allowed (BUG: check the first cmd only)
+        int first = data.get(data.position()) & 0xff;
+        if (!isExdataStart(first)) {
+            throw new XsException("Invalid start command of exdata (CMD: "+first+")");
+        }
+
+        //create cmd & execute it
+        this.execCommand(new XsCommand(XsCmd.XS_CMD_INDEX_EXDATA, 0, 0, data.slice()), XsCmd.XS_CMD_OK_RQST_FINISHED);
+    }
+
+    /**
+     * 获取可以在{@link #submitExdata}返回后继续使用的数据
+     * 不等待全部同步索引服务器时，它们可能在返回后才发送数据，因此调用者随即会重用的缓冲区需要复制一份
+     * @param data 调用者会重用的缓冲区中的数据
+     * @return 无需复制时返回data本身
+     */
+    ByteBuffer detach(ByteBuffer data) {
+        if (this.consistency == CONSISTENCY_ALL || this.replicas == null || this.replicas.isEmpty()) {
+            return data;
+        }
+        return ByteBuffer.allocate(data.remaining()).put(data.duplicate()).flip();
+    }
+
     public XsIndex addExdata(ArrayList<XsCommand> data) {
         return this.addExdata(data, false);
     }
@@ -0,0 +1,178 @@
+package com.hangjiayun.infrastructure;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 索引文档的编码方案
+ * 由字段方案编译而来，按字段序号（vno）依次记录每个字段要生成的命令及其参数，避免每个文档都重复判断字段的索引方式；
+ * 字段值只做一次UTF-8编码，由同一个值生成的多个命令共享这份数据。方案创建后不再改变，可以在多个线程间共享
+ * @see XsFieldSchema#getIndexPlan()
+ */
+final class XsIndexPlan {
+    /**
+     * 超过该字节数的词不会被索引
+     */
+    private static final int MAX_TERM_LENGTH = 200;
+
+    private final Step[] steps;
+
+    XsIndexPlan(XsFieldMeta[] fields) {
+        XsFieldMeta[] sorted = fields.clone();
+        Arrays.sort(sorted, Comparator.comparingInt(field -> field.vno));
+        this.steps = new Step[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            this.steps[i] = new Step(sorted[i]);
+        }
+    }
+
+    /**
+     * 生成文档各字段的索引命令
+     * @param doc 文档
+     * @param out 用于返回生成的命令
+     */
+    void encode(XsDocument doc, List<XsCommand> out) {
+        for (Step step : this.steps) {
+            step.encode(doc, out);
+        }
+    }
+
+    private static ByteBuffer utf8(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 单个字段的编码步骤
+     */
+    private static final class Step {
+        private final XsFieldMeta field;
+        private final String name;
+        private final int vno;
+        private final int weight;
+        private final boolean boolIndex;
+        /**
+         * 自定义分词器，为null表示使用服务端内置分词
+         */
+        private final XsTokenizer tokenizer;
+        /**
+         * 混合区索引的wdf，-1表示不在混合区索引
+         */
+        private final int mixedWdf;
+        /**
+         * 字段区索引的wdf（自定义分词时为词的wdf），-1表示不在字段区索引
+         */
+        private final int selfWdf;
+        /**
+         * 是否单独保存字段值（XS_CMD_DOC_VALUE）及其参数
+         */
+        private final boolean saveValue;
+        private final int valueArg;
+        /**
+         * 附加词（{@link XsDocument#getAddTerms}）的基础wdf
+         */
+        private final int termWdf;
+        /**
+         * 附加索引文本（{@link XsDocument#getAddIndex}）的wdf
+         */
+        private final int textWdf;
+
+        Step(XsFieldMeta field) {
+            this.field = field;
+            this.name = field.name;
+            this.vno = field.vno;
+            this.weight = field.weight;
+            this.boolIndex = field.isBoolIndex();
+            this.valueArg = field.isNumeric() ? XsCmd.XS_CMD_VALUE_FLAG_NUMERIC : 0;
+            this.termWdf = this.boolIndex ? 0 : XsCmd.XS_CMD_INDEX_FLAG_CHECKSTEM;
+            if (!field.hasCustomTokenizer()) {
+                int wdf = field.weight | (field.withPos() ? XsCmd.XS_CMD_INDEX_FLAG_WITHPOS : 0);
+                this.tokenizer = null;
+                this.mixedWdf = field.hasIndexMixed() ? wdf : -1;
+                this.selfWdf = field.hasIndexSelf() ? wdf | (field.isNumeric() ? 0 : XsCmd.XS_CMD_INDEX_FLAG_SAVEVALUE) : -1;
+                this.saveValue = !field.hasIndexSelf() || field.isNumeric();
+                this.textWdf = wdf;
+            } else {
+                // self: [bool term, NOT weight, NOT stem, NOT pos]，mixed: [use default tokenizer]
+                int wdf = this.boolIndex ? 1 : (field.weight | XsCmd.XS_CMD_INDEX_FLAG_CHECKSTEM);
+                this.tokenizer = field.getCustomTokenizer();
+                this.mixedWdf = field.hasIndexMixed() ? field.weight : -1;
+                this.selfWdf = field.hasIndexSelf() ? wdf : -1;
+                this.saveValue = true;
+                this.textWdf = wdf;
+            }
+        }
+
+        void encode(XsDocument doc, List<XsCommand> out) {
+            String value = doc.f(this.name);
+            if (value != null) {
+                value = this.field.val(value);
+                ByteBuffer data = utf8(value);
+                if (this.tokenizer == null) {
+                    if (this.mixedWdf >= 0) {
+                        out.add(new XsCommand(XsCmd.XS_CMD_DOC_INDEX, this.mixedWdf, XsFieldSchema.MIXED_VNO, data));
+                    }
+                    if (this.selfWdf >= 0) {
+                        out.add(new XsCommand(XsCmd.XS_CMD_DOC_INDEX, this.selfWdf, this.vno, data));
+                    }
+                } else if (this.selfWdf >= 0 || this.mixedWdf >= 0) {
+                    String[] terms = this.tokenizer.getTokens(value, doc);
+                    if (this.selfWdf >= 0) {
+                        this.addTerms(terms, this.selfWdf, out);
+                    }
+                    if (this.mixedWdf >= 0) {
+                        out.add(new XsCommand(XsCmd.XS_CMD_DOC_INDEX, this.mixedWdf, XsFieldSchema.MIXED_VNO, utf8(String.join(" ", terms))));
+                    }
+                }
+                if (this.saveValue) {
+                    out.add(new XsCommand(XsCmd.XS_CMD_DOC_VALUE, this.valueArg, this.vno, data));
+                }
+            }
+
+            // process add terms
+            Map<String, Integer> terms = doc.getAddTerms(this.field);
+            if (terms != null) {
+                for (Map.Entry<String, Integer> entry : terms.entrySet()) {
+                    byte[] term = entry.getKey().toLowerCase().getBytes(StandardCharsets.UTF_8);
+                    if (term.length > MAX_TERM_LENGTH) {
+                        continue;
+                    }
+                    ByteBuffer termData = ByteBuffer.wrap(term);
+                    int wdf = this.boolIndex ? 1 : entry.getValue() * this.weight;
+                    while (wdf > XsFieldMeta.MAX_WDF) {
+                        out.add(new XsCommand(XsCmd.XS_CMD_DOC_TERM, this.termWdf | XsFieldMeta.MAX_WDF, this.vno, termData));
+                        wdf -= XsFieldMeta.MAX_WDF;
+                    }
+                    out.add(new XsCommand(XsCmd.XS_CMD_DOC_TERM, this.termWdf | wdf, this.vno, termData));
+                }
+            }
+
+            // process add text
+            String text = doc.getAddIndex(this.field);
+            if (text != null) {
+                if (this.tokenizer == null) {
+                    out.add(new XsCommand(XsCmd.XS_CMD_DOC_INDEX, this.textWdf, this.vno, utf8(text)));
+                } else {
+                    // NOT pos
+                    this.addTerms(this.tokenizer.getTokens(text, doc), this.textWdf, out);
+                }
+            }
+        }
+
+        /**
+         * 逐个添加自定义分词得到的词，词会被转为小写，过长的词被忽略
+         */
+        private void addTerms(String[] terms, int wdf, List<XsCommand> out) {
+            for (String term : terms) {
+                byte[] bytes = term.toLowerCase().getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > MAX_TERM_LENGTH) {
+                    continue;
+                }
+                out.add(new XsCommand(XsCmd.XS_CMD_DOC_TERM, wdf, this.vno, ByteBuffer.wrap(bytes)));
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 可断点续传的并行重建索引
+ * 数据源中的文档按顺序轮流分配到各个分区，每个分区由独立的线程及连接提交，每提交完一批并被服务端确认后，把该分区已确认的文档数持久化到检查点；
+ * 进程中断后以相同的数据源（文档顺序必须一致）再次运行，会跳过各分区已确认的文档继续提交，而不必重新开始
+ * 全部分区都提交完毕后才调用{@link XsIndex#endRebuild()}，某批次重试后仍然失败时调用{@link XsIndex#stopRebuild()}放弃本次重建并删除检查点，
+ * 此时若无法连接服务端则保留检查点
+ * 注意：中断前最后一批可能已被服务端处理但未记录检查点，续传时会再次提交，因此总是以更新（而不是添加）的方式提交文档
+ */
+public class XsRebuilder {
+    private static final String STATE_FILE = "rebuild";
+
+    private final Supplier<XsIndex> connections;
+    private final Path dir;
+    private int partitions = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int batchSize = 1000;
+    private int queueSize = 10000;
+    private int retries = 3;
+
+    /**
+     * 使用项目的索引连接池（{@link Xs#borrowIndex()}）
+     * @param xs 项目
+     * @param dir 检查点目录，不存在时自动创建
+     */
+    public XsRebuilder(Xs xs, Path dir) {
+        this(xs::borrowIndex, dir);
+    }
+
+    /**
+     * @param connections 获取连接的方法，应当从连接池中借出，每个批次借出一次，提交后调用close()归还
+     * @param dir 检查点目录，不存在时自动创建
+     */
+    public XsRebuilder(Supplier<XsIndex> connections, Path dir) {
+        this.connections = connections;
+        this.dir = dir;
+    }
+
+    /**
+     * 设置分区数，即并行提交的线程数，续传时必须与中断前相同
+     * @param partitions 分区数，默认为CPU核数
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsRebuilder setPartitions(int partitions) {
+        this.partitions = Math.max(1, partitions);
+        return this;
+    }
+
+    /**
+     * 设置每批的文档数，每批提交后记录一次检查点
+     * @param batchSize 文档数，默认为1000
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsRebuilder setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    /**
+     * 设置等待提交的文档数上限，平均分配到各个分区
+     * @param queueSize 文档数，默认为10000
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsRebuilder setQueueSize(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+        return this;
+    }
+
+    /**
+     * 设置批次提交失败后的重试次数，每次重试都会重新获取连接
+     * @param retries 次数，默认为3
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsRebuilder setRetries(int retries) {
+        this.retries = Math.max(0, retries);
+        return this;
+    }
+
+    /**
+     * 判断检查点目录中是否有未完成的重建
+     * @return 有未完成的重建时返回true
+     */
+    public boolean isResumable() {
+        return Files.exists(this.dir.resolve(STATE_FILE));
+    }
+
+    public long run(Iterable<? extends XsDocument> source) {
+        return this.run(source.iterator());
+    }
+
+    /**
+     * 重建索引，有未完成的重建时从检查点继续
+     * 数据源抛出的异常会原样抛出，此时检查点保留，可以稍后续传
+     * @param source 数据源，续传时文档的顺序必须与之前相同
+     * @return 本次提交的文档数，不包括续传时跳过的文档
+     */
+    public long run(Iterator<? extends XsDocument> source) {
+        boolean resumed = this.isResumable();
+        long[] done = this.start();
+        Partition[] workers = new Partition[this.partitions];
+        for (int i = 0; i < this.partitions; i++) {
+            workers[i] = new Partition(i, done[i], Math.max(1, this.queueSize / this.partitions));
+            workers[i].start();
+        }
+        long[] seen = new long[this.partitions];
+        long submitted = 0;
+        RuntimeException error = null;
+        try {
+            for (long seq = 0; source.hasNext(); seq++) {
+                XsDocument doc = source.next();
+                int p = (int) (seq % this.partitions);
+                if (seen[p]++ < done[p]) {
+                    continue;
+                }
+                if (!workers[p].put(doc)) {
+                    break;
+                }
+                submitted++;
+            }
+        } catch (RuntimeException e) {
+            error = e;
+        } finally {
+            for (Partition worker : workers) {
+                worker.finish();
+            }
+        }
+        for (Partition worker : workers) {
+            if (worker.error != null) {
+                String state = this.stop() ? "rebuild stopped" : "checkpoint kept";
+                throw new XsException("Failed to rebuild partition " + worker.partition + ", " + state, worker.error);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        try (XsIndex index = this.connections.get()) {
+            index.continueRebuild().endRebuild();
+        } catch (XsException e) {
+            // 续传时全部文档都已确认，可能上次已完成重建但未能删除检查点，服务端不在重建状态
+            if (!resumed || submitted > 0 || e.getCode() != XsCmd.XS_CMD_ERR_WRONGPLACE) {
+                throw e;
+            }
+        }
+        this.deleteCheckpoints();
+        return submitted;
+    }
+
+    /**
+     * 开始重建，或从检查点读取各分区已确认的文档数
+     */
+    private long[] start() {
+        long[] done = new long[this.partitions];
+        try {
+            Files.createDirectories(this.dir);
+            Path state = this.dir.resolve(STATE_FILE);
+            if (Files.exists(state)) {
+                int partitions = (int) readLong(state);
+                if (partitions != this.partitions) {
+                    throw new XsException("Partition number mismatch with checkpoint (EXPECTED: " + partitions + ")");
+                }
+                for (int i = 0; i < partitions; i++) {
+                    Path checkpoint = this.checkpoint(i);
+                    done[i] = Files.exists(checkpoint) ? readLong(checkpoint) : 0;
+                }
+                return done;
+            }
+            try (XsIndex index = this.connections.get()) {
+                index.beginRebuild();
+            }
+            writeLong(state, this.partitions);
+            return done;
+        } catch (IOException e) {
+            throw new XsException("Failed to access rebuild checkpoint: " + this.dir, e);
+        }
+    }
+
+    /**
+     * 放弃本次重建，无法连接服务端时保留检查点，以便服务端恢复后续传
+     * @return 成功放弃时返回true
+     */
+    private boolean stop() {
+        try (XsIndex index = this.connections.get()) {
+            index.continueRebuild().stopRebuild();
+        } catch (RuntimeException e) {
+            return false;
+        }
+        this.deleteCheckpoints();
+        return true;
+    }
+
+    private void deleteCheckpoints() {
+        try {
+            for (int i = 0; i < this.partitions; i++) {
+                Files.deleteIfExists(this.checkpoint(i));
+            }
+            Files.deleteIfExists(this.dir.resolve(STATE_FILE));
+        } catch (IOException e) {
+            throw new XsException("Failed to delete rebuild checkpoint: " + this.dir, e);
+        }
+    }
+
+    private Path checkpoint(int partition) {
+        return this.dir.resolve("partition-" + partition);
+    }
+
+    private static long readLong(Path file) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() != 8) {
+            throw new XsException("Invalid rebuild checkpoint: " + file);
+        }
+        return buf.getLong();
+    }
+
+    /**
+     * 写入并刷到磁盘
+     */
+    private static void writeLong(Path file, long value) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, value);
+            while (buf.hasRemaining()) {
+                channel.write(buf, buf.position());
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * 分区提交线程
+     */
+    private final class Partition extends Thread {
+        private final int partition;
+        private final BlockingQueue<XsDocument> queue;
+        /**
+         * 已确认的文档数
+         */
+        private long done;
+        private volatile boolean finished = false;
+        private volatile Throwable error;
+
+        Partition(int partition, long done, int capacity) {
+            super("xs-rebuilder-" + partition);
+            this.partition = partition;
+            this.done = done;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.setDaemon(true);
+        }
+
+        /**
+         * 放入文档，线程出错后不再等待
+         * @return 线程出错时返回false
+         */
+        boolean put(XsDocument doc) {
+            try {
+                while (!this.queue.offer(doc, 100, TimeUnit.MILLISECONDS)) {
+                    if (this.error != null) {
+                        return false;
+                    }
+                }
+                return this.error == null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XsException("Interrupted while waiting for rebuild queue", e);
+            }
+        }
+
+        /**
+         * 通知线程提交剩余的文档后退出，并等待其结束
+         */
+        void finish() {
+            this.finished = true;
+            try {
+                this.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XsException("Interrupted while waiting for rebuild partition " + this.partition, e);
+            }
+        }
+
+        @Override
+        public void run() {
+            List<XsDocument> batch = new ArrayList<>(XsRebuilder.this.batchSize);
+            try {
+                while (true) {
+                    XsDocument doc = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (doc != null) {
+                        batch.add(doc);
+                        if (batch.size() >= XsRebuilder.this.batchSize) {
+                            this.submit(batch);
+                        }
+                    } else if (this.finished && this.queue.isEmpty()) {
+                        this.submit(batch);
+                        return;
+                    }
+                }
+            } catch (Throwable e) {
+                this.error = e;
+            }
+        }
+
+        private void submit(List<XsDocument> batch) throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (int attempt = 0; ; attempt++) {
+                XsIndex index = null;
+                try {
+                    index = XsRebuilder.this.connections.get();
+                    index.openBuffer();
+                    for (XsDocument doc : batch) {
+                        index.update(doc);
+                    }
+                    index.closeBuffer();
+                    break;
+                } catch (RuntimeException e) {
+                    if (index != null) {
+                        // 断开连接，以免缓冲区中残留的数据随连接归还后被提交
+                        index.close(true);
+                    }
+                    if (attempt >= XsRebuilder.this.retries) {
+                        throw e;
+                    }
+                } finally {
+                    if (index != null) {
+                        index.close();
+                    }
+                }
+            }
+            this.done += batch.size();
+            writeLong(XsRebuilder.this.checkpoint(this.partition), this.done);
+            batch.clear();
+        }
+    }
+}
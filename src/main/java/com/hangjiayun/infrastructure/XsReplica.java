@@ -0,0 +1,172 @@
+package com.hangjiayun.infrastructure;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 同步索引服务器
+ * 主索引服务器执行成功的命令按顺序进入有界队列，由独立的线程转发到该服务器，多个同步服务器之间并行执行
+ * 队列已满时提交命令的线程会被阻塞，以免同步服务器过慢时无限占用内存
+ * @see XsIndex#addServer(String)
+ */
+public class XsReplica implements AutoCloseable {
+    private final XsServer server;
+    private final BlockingQueue<Task> queue;
+    /**
+     * 转发线程，首次提交命令时启动，在此之前可以直接在当前线程中设置服务器（如{@link XsServer#setTimeout}）
+     */
+    private Thread thread;
+    /**
+     * 正在执行的命令
+     */
+    private volatile Task current;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile Throwable lastError;
+
+    XsReplica(XsServer server, int queueSize) {
+        this.server = server;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+    }
+
+    public XsServer getServer() {
+        return this.server;
+    }
+
+    /**
+     * 获取等待转发的命令数，不包括正在执行的命令
+     * @return 命令数
+     */
+    public int getQueued() {
+        return this.queue.size();
+    }
+
+    /**
+     * 获取同步延迟，即最早一个尚未完成的命令已经等待的毫秒数
+     * @return 毫秒数，没有待转发的命令时为0
+     */
+    public long getLag() {
+        Task task = this.current;
+        if (task == null) {
+            task = this.queue.peek();
+        }
+        return task == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.since);
+    }
+
+    /**
+     * 获取已成功转发的命令数
+     * @return 命令数
+     */
+    public long getCompleted() {
+        return this.completed.get();
+    }
+
+    /**
+     * 获取转发失败的命令数
+     * @return 命令数
+     */
+    public long getFailures() {
+        return this.failures.get();
+    }
+
+    /**
+     * 获取最近一次转发失败的原因
+     * @return 异常，从未失败时为null
+     */
+    public Throwable getLastError() {
+        return this.lastError;
+    }
+
+    /**
+     * 提交命令
+     * @param cmd 命令，提交后不能再修改
+     * @param resArg 期望的响应参数
+     * @param resCmd 期望的响应指令
+     * @return 命令在该服务器上执行完毕后完成的Future
+     */
+    CompletableFuture<Void> submit(XsCommand cmd, int resArg, int resCmd) {
+        Task task = new Task(cmd, resArg, resCmd);
+        synchronized (this) {
+            if (this.thread == null) {
+                this.thread = new Thread(this::run, "xs-replica-" + this.server.conn);
+                this.thread.setDaemon(true);
+                this.thread.start();
+            }
+        }
+        try {
+            this.queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XsException("Interrupted while waiting for replica queue (C#" + this.server.conn + ")", e);
+        }
+        return task.future;
+    }
+
+    /**
+     * 转发完队列中剩余的命令后关闭连接
+     */
+    @Override
+    public void close() {
+        this.close(false);
+    }
+
+    void close(boolean ioError) {
+        Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+            this.thread = null;
+        }
+        if (thread != null) {
+            try {
+                this.queue.put(new Task(null, 0, 0));
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.server.close(ioError);
+    }
+
+    private void run() {
+        while (true) {
+            Task task;
+            try {
+                task = this.queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task.cmd == null) {
+                return;
+            }
+            this.current = task;
+            try {
+                this.server.execCommand(task.cmd, task.resArg, task.resCmd);
+                this.completed.incrementAndGet();
+                task.future.complete(null);
+            } catch (RuntimeException e) {
+                this.failures.incrementAndGet();
+                this.lastError = e;
+                task.future.completeExceptionally(e);
+            } finally {
+                this.current = null;
+            }
+        }
+    }
+
+    private static final class Task {
+        private final XsCommand cmd;
+        private final int resArg;
+        private final int resCmd;
+        private final long since = System.nanoTime();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Task(XsCommand cmd, int resArg, int resCmd) {
+            this.cmd = cmd;
+            this.resArg = resArg;
+            this.resCmd = resCmd;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,6 +14,9 @@ public class XsSearch extends XsServer{
      */
     private static final int PAGE_SIZE = 10;
     private static final String LOG_DB = "log_db";
+    private static final XsCommand.Template QUERY_INIT = new XsCommand.Template(XsCmd.XS_CMD_QUERY_INIT);
+    private static final XsCommand.Template QUERY_RESET = new XsCommand.Template(XsCmd.XS_CMD_QUERY_INIT, 1, 0);
+    private static final XsCommand.Template KEEPALIVE = new XsCommand.Template(XsCmd.XS_CMD_SEARCH_KEEPALIVE);
     private String charset = "UTF-8";
     private int defaultOp = XsCmd.XS_CMD_QUERY_OP_AND;
     private Map<String, Boolean> prefix;
@@ -42,6 +46,21 @@ public class XsSearch extends XsServer{
         this(null, xs);
     }
 
+    @Override
+    protected String getConfigPrefix() {
+        return "server.search";
+    }
+
+    /**
+     * 保活
+     * 先发送无需响应的搜索保活指令，再随{@link XsServer#keepAlive()}的请求一起发出
+     */
+    @Override
+    public void keepAlive() {
+        this.execCommand(KEEPALIVE.create());
+        super.keepAlive();
+    }
+
     /**
      * 连接搜索服务端并初始化
      * 每次重新连接后所有的搜索语句相关设置均被还原
@@ -55,6 +74,29 @@ public class XsSearch extends XsServer{
         this.lastCount = 0;
     }
 
+    /**
+     * 归还到连接池前还原搜索语句、排序、分页及分面等设置，字符集还原为项目的默认字符集
+     * 尚未发出的设置命令直接丢弃（丢弃的命令中可能有字段设置，因此同时重置方案），已生效的搜索语句及排序由随下次请求发出的命令还原
+     * @return 总是返回true
+     */
+    @Override
+    boolean reset() {
+        if (!this.sendBuffer.isEmpty()) {
+            this.sendBuffer.clear();
+            this.resetScheme = true;
+        }
+        this.clearQuery();
+        this.setSort(null);
+        this.setCharset(this.xs == null ? "UTF-8" : this.xs.getDefaultCharset());
+        this.defaultOp = XsCmd.XS_CMD_QUERY_OP_AND;
+        this.limit = 0;
+        this.offset = 0;
+        this.lastCount = 0;
+        this.highlight = null;
+        this.facets = new HashMap<>();
+        return true;
+    }
+
     /**
      * 设置默认字符集
      * 默认字符集是UTF-8，如果您提交的搜索语句和预期得到的搜索结果为其他字符集，请先设置
@@ -69,6 +111,10 @@ public class XsSearch extends XsServer{
         return this;
     }
 
+    public String getCharset() {
+        return this.charset;
+    }
+
     /**
      * 开启模糊搜索
      * 默认情况只返回包含所有搜索词的记录，通过本方法可以获得更多搜索结果
@@ -235,9 +281,8 @@ public class XsSearch extends XsServer{
      * 清空默认搜索语句
      */
     public void clearQuery() {
-        XsCommand cmd = new XsCommand(XsCmd.XS_CMD_QUERY_INIT);
+        XsCommand cmd = (this.resetScheme ? QUERY_RESET : QUERY_INIT).create();
         if (this.resetScheme) {
-            cmd.arg1 = 1;
             this.prefix.clear();
             this.fieldSet = false;
             this.resetScheme = false;
@@ -277,7 +322,7 @@ public class XsSearch extends XsServer{
         return addQueryString(query, XsCmd.XS_CMD_QUERY_OP_AND, 1);
     }
 
-    private String preQueryString(String query) {
+    String preQueryString(String query) {
         query = query.trim();
         if (this.resetScheme) {
             this.clearQuery();
@@ -591,93 +636,189 @@ public class XsSearch extends XsServer{
         return count(null);
     }
 
+    /**
+     * 异步估算搜索语句的匹配数据量
+     * 开启流水线（{@link #setPipelineWindow}）后，多个估算请求可以在同一连接上并发进行
+     * @param query 搜索语句，若传入null使用默认语句
+     * @return 以匹配数量完成的Future
+     * @see #count(String)
+     */
+    public CompletableFuture<Integer> countAsync(String query) {
+        String q;
+        try {
+            q = query == null ? "" : this.preQueryString(query);
+        } catch (XsException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (q.isBlank() && this.count != null) {
+            return CompletableFuture.completedFuture(this.count);
+        }
+        XsCommand cmd = new XsCommand(XsCmd.XS_CMD_SEARCH_GET_TOTAL, 0, this.defaultOp, ByteBuffer.wrap(q.getBytes(StandardCharsets.UTF_8)));
+        return this.execCommandAsync(cmd).thenApply(res -> {
+            int count = res.buf.order(ByteOrder.LITTLE_ENDIAN).getInt();
+            if (q.isBlank()) {
+                this.count = count;
+            }
+            return count;
+        });
+    }
+
+    public CompletableFuture<Integer> countAsync() {
+        return countAsync(null);
+    }
+
     public List<XsDocument> search(String query, boolean saveHighlight) {
+        query = this.prepareSearch(query, saveHighlight);
+        ResultReader reader = new ResultReader();
+        reader.begin(this.execCommand(this.buildSearch(query), XsCmd.XS_CMD_OK_RESULT_BEGIN));
+        while (!reader.onRespond(this.readRespond())) {
+            // get result documents
+        }
+        return this.finishSearch(query, saveHighlight, reader);
+    }
+
+    public List<XsDocument> search(String query) {
+        return search(query, true);
+    }
+
+    public List<XsDocument> search() {
+        return search(null);
+    }
+
+    /**
+     * 异步执行搜索
+     * 搜索语句相关的设置与{@link #search(String, boolean)}相同，结果由事件循环线程解析完毕后完成
+     * 注意：在返回的Future完成之前，不要在其他线程中修改当前对象的搜索设置
+     * @param query 搜索语句，若传入null使用默认语句
+     * @param saveHighlight 是否存储查询词用于高亮处理
+     * @return 以匹配的文档列表完成的Future
+     * @see XsServer#execCommandAsync(XsCommand, int, int)
+     */
+    public CompletableFuture<List<XsDocument>> searchAsync(String query, boolean saveHighlight) {
+        String q;
+        XsCommand cmd;
+        try {
+            q = this.prepareSearch(query, saveHighlight);
+            cmd = this.buildSearch(q);
+        } catch (XsException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return this.submit(cmd, new ResultReader()).thenApply(reader -> this.finishSearch(q, saveHighlight, reader));
+    }
+
+    public CompletableFuture<List<XsDocument>> searchAsync(String query) {
+        return searchAsync(query, true);
+    }
+
+    public CompletableFuture<List<XsDocument>> searchAsync() {
+        return searchAsync(null);
+    }
+
+    private String prepareSearch(String query, boolean saveHighlight) {
         if (!LOG_DB.equals(this.curDb) && saveHighlight) {
             this.highlight = query;
         }
-        query = query == null ? "" : this.preQueryString(query);
+        return query == null ? "" : this.preQueryString(query);
+    }
+
+    /**
+     * 构建获取搜索结果的指令，构建后分页设置会被还原
+     * @param query 预处理后的搜索语句
+     * @return 搜索指令
+     */
+    private XsCommand buildSearch(String query) {
         ByteBuffer page = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
         page.putInt(this.offset);
         page.putInt(this.limit>0?this.limit:PAGE_SIZE);
-        XsCommand cmd = new XsCommand(XsCmd.XS_CMD_SEARCH_GET_RESULT, 0, this.defaultOp, ByteBuffer.wrap(query.getBytes(StandardCharsets.UTF_8)), page);
-        XsCommand res = this.execCommand(cmd, XsCmd.XS_CMD_OK_RESULT_BEGIN);
-        this.lastCount = res.buf.order(ByteOrder.LITTLE_ENDIAN).getInt();
+        this.limit = 0;
+        this.offset = 0;
+        return new XsCommand(XsCmd.XS_CMD_SEARCH_GET_RESULT, 0, this.defaultOp, ByteBuffer.wrap(query.getBytes(StandardCharsets.UTF_8)), page);
+    }
+
+    private List<XsDocument> finishSearch(String query, boolean saveHighlight, ResultReader reader) {
+        this.lastCount = reader.count;
+        this.facets = reader.facets;
+        if (query.isEmpty()) {
+            this.count = this.lastCount;
+            if (!LOG_DB.equals(this.curDb)) {
+                this.logQuery();
+                if (saveHighlight) {
+                    this.initHighlight();
+                }
+            }
+        }
+        return reader.docs;
+    }
 
+    /**
+     * 搜索结果读取器
+     * 依次处理XS_CMD_SEARCH_GET_RESULT指令返回的各个响应包，同步及异步搜索共用
+     */
+    private class ResultReader implements XsAsyncChannel.Handler<ResultReader> {
         // load vno map to name of fields
-        List<XsDocument> ret = new ArrayList<>(this.lastCount);
-        Map<Integer, String> vnoes = this.xs.getSchema().getVnoMap();
+        private final Map<Integer, String> vnoes = XsSearch.this.xs.getSchema().getVnoMap();
+        private final Map<String, Map<String, Integer>> facets = new HashMap<>();
+        private List<XsDocument> docs;
+        private XsDocument doc;
+        private int count;
+
+        /**
+         * 处理搜索指令的首个响应包
+         * @param res 已检查过的XS_CMD_OK_RESULT_BEGIN响应
+         */
+        void begin(XsCommand res) {
+            this.count = res.buf.order(ByteOrder.LITTLE_ENDIAN).getInt();
+            this.docs = new ArrayList<>(Math.min(this.count, PAGE_SIZE));
+        }
 
-        XsDocument doc = null;
-        // get result documents;
-        while (true) {
-            res = this.getRespond();
+        @Override
+        public boolean onRespond(XsCommand res) {
+            if (this.docs == null) {
+                this.begin(XsSearch.this.checkRespond(res, XsCmd.XS_CMD_OK_RESULT_BEGIN, XsCmd.XS_CMD_OK));
+                return false;
+            }
             if (res.cmd == XsCmd.XS_CMD_SEARCH_RESULT_FACETS) {
                 int off = 0;
                 ByteBuffer byteBuffer = res.buf.order(ByteOrder.LITTLE_ENDIAN);
-                while ((off+6) < res.buf.capacity()) {
-                    int vno = byteBuffer.get();//偏移1字节
-                    int vlen = byteBuffer.get();//偏移1字节
-                    if (vnoes.containsKey(vno)) {
-                        String name = vnoes.get(vno);
-                        int num = byteBuffer.getInt();//偏移4字节【这里可能后续要注意一下int类型大小溢出】
-                        byte[] value = new byte[vlen];
-                        byteBuffer.get(value, 0, vlen);//该偏移是基于漆面偏移6字节后的偏移vlen字节
-                        String valueStr = new String(value, StandardCharsets.UTF_8);
-                        if (!this.facets.containsKey(name)) {
-                            this.facets.put(name, new HashMap<>(){{
-                                put(valueStr, num);
-                            }});
-                        } else {
-                            this.facets.get(name).put(valueStr, num);
-                        }
+                while ((off+6) < res.getBufLength()) {
+                    int vno = byteBuffer.get() & 0xFF;//偏移1字节
+                    int vlen = byteBuffer.get() & 0xFF;//偏移1字节
+                    int num = byteBuffer.getInt();//偏移4字节【这里可能后续要注意一下int类型大小溢出】
+                    byte[] value = new byte[vlen];
+                    byteBuffer.get(value, 0, vlen);//该偏移是基于前面偏移6字节后的偏移vlen字节
+                    if (this.vnoes.containsKey(vno)) {
+                        String name = this.vnoes.get(vno);
+                        this.facets.computeIfAbsent(name, k -> new HashMap<>()).put(new String(value, StandardCharsets.UTF_8), num);
                     }
                     off += vlen + 6;
                 }
             } else if (res.cmd == XsCmd.XS_CMD_SEARCH_RESULT_DOC) {
                 // got new doc
-                doc = new XsDocument(new String(res.buf.array(), StandardCharsets.ISO_8859_1), this.charset);
-                ret.add(doc);
+                this.doc = new XsDocument(res.buf, XsSearch.this.charset);
+                this.docs.add(this.doc);
             } else if (res.cmd == XsCmd.XS_CMD_SEARCH_RESULT_FIELD) {
-                if (doc != null) {
-                    String name = vnoes.containsKey(res.getArg()) ? vnoes.get(res.getArg()) : String.valueOf(res.getArg());
-                    doc.setField(name, new String(res.buf.array(), StandardCharsets.UTF_8));
+                if (this.doc != null) {
+                    String name = this.vnoes.containsKey(res.getArg()) ? this.vnoes.get(res.getArg()) : String.valueOf(res.getArg());
+                    this.doc.setField(name, res.getBufString(StandardCharsets.UTF_8));
                 }
             } else if (res.cmd == XsCmd.XS_CMD_SEARCH_RESULT_MATCHED) {
-                if (doc != null) {
-                    doc.setField("matched", new ArrayList<>(Arrays.asList((new String(res.buf.array(), StandardCharsets.UTF_8). split(" ")))), true);
+                if (this.doc != null) {
+                    this.doc.setField("matched", new ArrayList<>(Arrays.asList(res.getBufString(StandardCharsets.UTF_8).split(" "))), true);
                 }
             } else if (res.cmd == XsCmd.XS_CMD_OK && res.getArg() == XsCmd.XS_CMD_OK_RESULT_END) {
-                break;
+                return true;
             } else {
                 throw new XsException("Unexpected respond in search {CMD: "+res.cmd+", ARG: "+res.getArg()+"}");
             }
+            return false;
         }
 
-        if (query.isEmpty()) {
-            this.count = this.lastCount;
-            if (!LOG_DB.equals(this.curDb)) {
-                this.logQuery();
-                if (saveHighlight) {
-                    this.initHighlight();
-                }
-            }
+        @Override
+        public ResultReader getResult() {
+            return this;
         }
-
-        this.limit = 0;
-        this.offset = 0;
-        return ret;
-    }
-
-    public List<XsDocument> search(String query) {
-        return search(query, true);
     }
 
-    public List<XsDocument> search() {
-        return search(null);
-    }
-
-
-
     private void logQuery(String query) {
         //todo: 该实现暂未完成
     }
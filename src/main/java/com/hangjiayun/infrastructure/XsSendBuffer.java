@@ -0,0 +1,127 @@
+package com.hangjiayun.infrastructure;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * 二进制发送缓冲区
+ * 封包头部及较小的数据复制到连续的缓冲区中，较大的数据则直接引用调用方的缓冲区而不复制，
+ * 最终以{@link #toBuffers()}得到的数组通过一次聚集写入（GatheringByteChannel）发送
+ */
+class XsSendBuffer {
+    /**
+     * 不小于该字节数的数据直接引用而不复制
+     */
+    private static final int COPY_THRESHOLD = 1024;
+    private static final int CHUNK_SIZE = 4096;
+
+    private final ArrayList<ByteBuffer> parts = new ArrayList<>();
+    /**
+     * 复制缓冲区，从start到position之间为尚未成块的数据
+     */
+    private ByteBuffer chunk;
+    private int start = 0;
+    private int length = 0;
+
+    /**
+     * 追加一个命令封包
+     * @param cmd 命令
+     */
+    void append(XsCommand cmd) {
+        int len = cmd.getEncodedLength();
+        if (len < COPY_THRESHOLD) {
+            this.reserve(len);
+            cmd.encodeTo(this.chunk);
+            this.length += len;
+            return;
+        }
+        this.reserve(XsCommand.HEADER_SIZE);
+        cmd.putHeader(this.chunk);
+        this.length += XsCommand.HEADER_SIZE;
+        this.append(cmd.bufView());
+        this.append(cmd.buf1View());
+    }
+
+    /**
+     * 追加数据，追加后不能再修改该数据的内容
+     * @param data 从position到limit的数据
+     */
+    void append(ByteBuffer data) {
+        int len = data.remaining();
+        if (len == 0) {
+            return;
+        }
+        if (len >= COPY_THRESHOLD) {
+            this.seal();
+            this.parts.add(data);
+        } else {
+            this.reserve(len);
+            this.chunk.put(data);
+        }
+        this.length += len;
+    }
+
+    boolean isEmpty() {
+        return this.length == 0;
+    }
+
+    int length() {
+        return this.length;
+    }
+
+    /**
+     * 获取全部待发送的数据
+     * 在调用{@link #clear()}或{@link #detach()}前不能再追加数据
+     * @return 按顺序排列的数据块
+     */
+    ByteBuffer[] toBuffers() {
+        this.seal();
+        return this.parts.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * 清空缓冲区，数据已经发送完毕时调用，内部的复制缓冲区会被重复使用
+     */
+    void clear() {
+        this.parts.clear();
+        this.length = 0;
+        this.start = 0;
+        if (this.chunk != null) {
+            this.chunk.clear();
+        }
+    }
+
+    /**
+     * 取出全部待发送的数据并清空缓冲区
+     * 用于数据交由其他线程发送的情况，此后不会再复用已取出的内部缓冲区
+     * @return 按顺序排列的数据块
+     */
+    ByteBuffer[] detach() {
+        ByteBuffer[] buffers = this.toBuffers();
+        this.parts.clear();
+        this.length = 0;
+        this.start = 0;
+        this.chunk = null;
+        return buffers;
+    }
+
+    /**
+     * 将复制缓冲区中已写入的部分作为一个数据块
+     */
+    private void seal() {
+        if (this.chunk != null && this.chunk.position() > this.start) {
+            ByteBuffer part = this.chunk.duplicate();
+            part.flip().position(this.start);
+            this.parts.add(part);
+            this.start = this.chunk.position();
+        }
+    }
+
+    private void reserve(int len) {
+        if (this.chunk == null || this.chunk.remaining() < len) {
+            this.seal();
+            this.chunk = ByteBuffer.allocate(Math.max(CHUNK_SIZE, len));
+            this.start = 0;
+        }
+    }
+}
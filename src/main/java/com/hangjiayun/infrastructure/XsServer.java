@@ -1,14 +1,18 @@
 package com.hangjiayun.infrastructure;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 public class XsServer extends XsComponent implements AutoCloseable{
     /**
@@ -16,6 +20,9 @@ public class XsServer extends XsComponent implements AutoCloseable{
      */
     private static final int FILE = 0x01;
     private static final int BROKEN = 0x02;
+    private static final XsCommand.Template USE = new XsCommand.Template(XsCmd.XS_CMD_USE);
+    private static final XsCommand.Template QUIT = new XsCommand.Template(XsCmd.XS_CMD_QUIT);
+    private static final XsCommand.Template GET_DB = new XsCommand.Template(XsCmd.XS_CMD_INDEX_GET_DB);
 
     /**
      * 服务端关联的XS对象
@@ -27,7 +34,10 @@ public class XsServer extends XsComponent implements AutoCloseable{
      */
     protected String conn;
     protected int flag;
-    protected StringBuilder sendBuffer = new StringBuilder();
+    /**
+     * 发送缓冲区，无需响应的指令（cmd带有0x80标志）会先缓存在这里，随下一个需要响应的指令一起发送
+     */
+    XsSendBuffer sendBuffer = new XsSendBuffer();
     protected String project;
 
     /**
@@ -35,6 +45,53 @@ public class XsServer extends XsComponent implements AutoCloseable{
      */
     protected Channel channel;
 
+    /**
+     * 所属的连接池，不为null时{@link #close()}会将连接归还到连接池
+     */
+    XsServerPool<?> pool;
+    /**
+     * 是否处于借出状态，由连接池维护，已归还的连接再次调用{@link #close()}时不做任何操作
+     */
+    boolean borrowed = false;
+
+    /**
+     * 所属的负载均衡节点，不为null时请求耗时及连接出错会计入该节点的统计
+     */
+    XsBalancer.Node<?> node;
+    /**
+     * 当前连接的出错是否已经计入节点统计，每个连接只计一次
+     */
+    private volatile boolean failed = false;
+
+    /**
+     * 异步模式下的连接，首次调用异步命令时创建，此后该连接上的所有命令都通过事件循环收发
+     */
+    XsAsyncChannel async;
+    private XsEventLoop eventLoop;
+    /**
+     * 同步读取响应时使用的解码器，接收缓冲区在同一连接的多次读取间重复使用
+     */
+    private XsFrameDecoder decoder;
+    private int recvBufferSize = 8192;
+    private boolean recvBufferDirect = false;
+    private int pipelineWindow = 1;
+    /**
+     * 套接字参数，为null时连接前从项目配置中读取
+     */
+    private XsSocketOptions options;
+    /**
+     * 发送数据及等待响应的超时毫秒数，小于等于0表示不限制
+     */
+    private int ioTimeout = 0;
+    /**
+     * 设置了超时时，同步读写通过该Selector等待通道就绪，以便在超时后放弃等待
+     */
+    private Selector selector;
+    /**
+     * 最近一次通过{@link #setTimeout}设置的服务端超时秒数，-1表示未设置
+     */
+    private int serverTimeout = -1;
+
     public XsServer(String conn, Xs xs) {
         this.xs = xs;
         if (conn != null) {
@@ -51,14 +108,18 @@ public class XsServer extends XsComponent implements AutoCloseable{
     }
 
     public void open(String conn) {
-        this.close();
+        this.close(false);
+        this.async = null;
+        this.decoder = null;
         this.conn = conn;
         this.flag = BROKEN;
-        this.sendBuffer.setLength(0);
+        this.failed = false;
+        this.serverTimeout = -1;
+        this.sendBuffer.clear();
         this.project = null;
         this.connect();
         this.flag ^= BROKEN;
-        if (this.xs instanceof Xs) {
+        if (this.xs instanceof Xs && (this.flag & FILE) <= 0) {
             this.setProject(this.xs.getName());
         }
     }
@@ -67,72 +128,168 @@ public class XsServer extends XsComponent implements AutoCloseable{
         String conn = this.conn;
         String host = "";
         int port = -1;
+        XsSocketOptions options = this.getSocketOptions();
         if (conn.matches("^\\d+$")) {
             host = "localhost";
             port = Integer.parseInt(conn);
         } else if (conn.startsWith("file://")) {
+            // 命令封包依次写入本地文件，不读取响应，得到的文件可通过XsIndex.addExdata(Path)提交
             try {
-                this.channel = FileChannel.open(Path.of(new URI(conn)));
-                return;
+                this.channel = FileChannel.open(Path.of(new URI(conn)), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
             } catch (Exception e) {
-                throw new XsException("Failed to open local file for writing: `" + conn + "`");
+                throw new XsException("Failed to open local file for writing: `" + conn + "`", e);
             }
-        } else if (conn.contains(":")) {
+            this.flag |= FILE;
+            return;
+        } else if (conn.startsWith("unix://") || !conn.contains(":")) {
+            // 本机的Unix域套接字，如：unix:///tmp/xs-search.sock 或 /tmp/xs-search.sock
+            String path = conn.startsWith("unix://") ? conn.substring(7) : conn;
+            SocketChannel channel = XsUnixSocket.open(path);
+            try {
+                options.apply(channel);
+            } catch (IOException e) {
+                this.closeQuietly(channel);
+                throw new XsException(e.getMessage() + "(C#unix://" + path + ")", e);
+            }
+            this.setupChannel(channel, options.getTimeout(), "unix://" + path);
+            return;
+        } else {
             String[] connArr = conn.split(":");
             if (connArr.length >= 2) {
                 host = connArr[0];
                 port = Integer.parseInt(connArr[1]);
             }
-        } else {
-            host = "unix://" + conn;
-            port = -1;
         }
+        SocketChannel channel = null;
         try {
-            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
-            channel.configureBlocking(true);
-            channel.socket().setSoTimeout(30);
-            this.channel = channel;
+            channel = SocketChannel.open();
+            options.apply(channel);
+            if (options.getConnectTimeout() > 0) {
+                channel.socket().connect(new InetSocketAddress(host, port), options.getConnectTimeout());
+            } else {
+                channel.connect(new InetSocketAddress(host, port));
+            }
         } catch (Exception e) {
-            StringBuilder err = new StringBuilder(e.getMessage());
+            this.closeQuietly(channel);
+            StringBuilder err = new StringBuilder(String.valueOf(e.getMessage()));
             err.append("(C#").append(host).append(":").append(port).append(")");
             throw new RuntimeException(err.toString(), e);
         }
+        this.setupChannel(channel, options.getTimeout(), host + ":" + port);
+    }
+
+    /**
+     * 设置套接字参数，在下次连接时生效
+     * 未设置时从项目配置中读取，见{@link Xs#getSocketOptions(String)}
+     * @param options 套接字参数
+     */
+    public void setSocketOptions(XsSocketOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * 获取从项目配置中读取套接字参数时使用的配置项前缀
+     * @return 配置项前缀，如server.search
+     */
+    protected String getConfigPrefix() {
+        return "server";
+    }
+
+    private XsSocketOptions getSocketOptions() {
+        if (this.options != null) {
+            return this.options;
+        }
+        return this.xs != null ? this.xs.getSocketOptions(this.getConfigPrefix()) : new XsSocketOptions();
+    }
+
+    /**
+     * 按超时设置初始化已连接的通道
+     * 设置了超时时切换为非阻塞模式，同步读写改为通过私有的Selector限时等待，从而使超时真正生效
+     * @param channel 已连接的通道
+     * @param timeout 读写超时毫秒数
+     * @param address 连接地址，用于错误信息
+     */
+    private void setupChannel(SocketChannel channel, int timeout, String address) {
+        try {
+            if (timeout > 0) {
+                channel.configureBlocking(false);
+                this.selector = Selector.open();
+                channel.register(this.selector, 0);
+            }
+        } catch (IOException e) {
+            this.closeSelector();
+            this.closeQuietly(channel);
+            throw new XsException(e.getMessage() + "(C#" + address + ")", e);
+        }
+        this.channel = channel;
+        this.ioTimeout = timeout;
     }
 
     public void close(boolean ioError) {
+        if (ioError && (this.flag & BROKEN) <= 0) {
+            this.onBroken();
+        }
+        if (this.async != null && (this.flag & BROKEN) <= 0) {
+            if (ioError || !this.async.isOpen()) {
+                this.sendBuffer.clear();
+            } else {
+                this.sendBuffer.append(QUIT.create());
+            }
+            this.async.close(this.sendBuffer.detach());
+            this.flag |= BROKEN;
+            return;
+        }
         if (this.channel != null && (this.flag & BROKEN) <= 0) {
-            if (!ioError && this.sendBuffer.length() != 0) {
-                this.write(this.sendBuffer.toString());
-                this.sendBuffer.setLength(0);
+            if (!ioError && (this.flag & FILE) <= 0 && this.channel instanceof WritableByteChannel) {
+                this.sendBuffer.append(QUIT.create());
             }
-            if (!ioError && (this.flag & FILE) <= 0) {
-                if (this.channel instanceof WritableByteChannel) {
-                    WritableByteChannel channel = (WritableByteChannel) this.channel;
-                    ByteBuffer byteBuffer = ByteBuffer.wrap((new XsCommand(XsCmd.XS_CMD_QUIT).toString().getBytes()));
-                    try {
-                        channel.write(byteBuffer);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                }
+            if (!ioError && !this.sendBuffer.isEmpty()) {
+                this.flush();
             }
+            this.sendBuffer.clear();
             try {
                 this.channel.close();
             } catch (Exception e) {
 
             }
+            this.closeSelector();
             this.flag |= BROKEN;
         }
     }
 
+    /**
+     * 关闭连接
+     * 如果是从连接池借出的连接，则归还到连接池而不是断开
+     */
     @Override
     public void close() {
-        this.close(false);
+        if (this.pool != null) {
+            this.pool.recycle(this);
+        } else {
+            this.close(false);
+        }
+    }
+
+    /**
+     * 归还到连接池前还原借出期间的设置
+     * 发送缓冲区中还有未发出的命令时无法还原，连接池会直接关闭该连接（关闭时仍会发出这些命令）
+     * @return 可以继续复用时返回true
+     */
+    boolean reset() {
+        return this.sendBuffer.isEmpty();
+    }
+
+    /**
+     * 判断当前连接是否可用
+     * @return 已连接且未出错返回true，否则返回false
+     */
+    public boolean isConnected() {
+        return this.channel != null && this.channel.isOpen() && (this.flag & BROKEN) <= 0;
     }
 
     public void setProject(String name, String home) {
         if (!name.equals(this.project)) {
-            this.execCommand(Map.of("cmd", XsCmd.XS_CMD_USE, "buf", ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8)), "buf1", ByteBuffer.wrap(home.getBytes(StandardCharsets.UTF_8))), XsCmd.XS_CMD_OK_PROJECT);
+            this.execCommand(USE.create(ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8)), ByteBuffer.wrap(home.getBytes(StandardCharsets.UTF_8))), XsCmd.XS_CMD_OK_PROJECT);
             this.project = name;
         }
     }
@@ -143,31 +300,72 @@ public class XsServer extends XsComponent implements AutoCloseable{
 
     /**
      * 设置服务端超时秒数
+     * 写入本地文件（file://）的连接忽略该设置
      * @param sec 秒数，设为0则永不超时直到客户端主动关闭
      */
     public void setTimeout(int sec) {
+        if ((this.flag & FILE) > 0) {
+            return;
+        }
         XsCommand cmd = new XsCommand(XsCmd.XS_CMD_TIMEOUT);
         cmd.setArg(sec);
         this.execCommand(cmd, XsCmd.XS_CMD_OK_TIMEOUT_SET);
+        this.serverTimeout = sec;
+    }
+
+    /**
+     * 保活
+     * 通过一次请求往返确认连接可用，同时重置服务端对该连接的空闲计时，不改变连接的任何设置：
+     * 设置过{@link #setTimeout}时重新设置相同的超时秒数，否则读取当前库名（XS_CMD_INDEX_GET_DB，搜索及索引服务端均支持）
+     * 写入本地文件（file://）的连接忽略保活
+     */
+    public void keepAlive() {
+        if ((this.flag & FILE) > 0) {
+            return;
+        }
+        if (this.serverTimeout >= 0) {
+            this.setTimeout(this.serverTimeout);
+        } else {
+            this.execCommand(GET_DB.create(), XsCmd.XS_CMD_OK_DB_INFO);
+        }
     }
 
     public XsCommand execCommand(XsCommand cmd, int resArg, int resCmd) {
         if ((cmd.cmd & 0x80) > 0) {
-            this.sendBuffer.append(cmd.toString());
+            this.sendBuffer.append(cmd);
             return null;
         }
-        String buf = this.sendBuffer.append(cmd.toString()).toString();
-        this.sendBuffer.setLength(0);
-        this.write(buf);
-//        this.write(cmd.getBytes());
+        if (this.async != null) {
+            return this.await(this.submit(cmd, XsAsyncChannel.single()).thenApply(res -> this.checkRespond(res, resArg, resCmd)));
+        }
+        XsCommand res = this.execBlocking(cmd, resArg, resCmd);
+        return res == null ? null : res.copy();
+    }
+
+    private XsCommand execBlocking(XsCommand cmd, int resArg, int resCmd) {
+        long start = System.nanoTime();
+        this.sendBuffer.append(cmd);
+        this.flush();
 
         if ((this.flag & FILE) > 0) {
             return null;
         }
 
-        XsCommand res = this.getRespond();
+        XsCommand res = this.readRespond();
+        this.onRespond(start);
+        return this.checkRespond(res, resArg, resCmd);
+    }
+
+    /**
+     * 检查服务端的响应是否符合预期
+     * @param res 响应指令
+     * @param resArg 期望的响应参数，为XS_CMD_NONE时不检查
+     * @param resCmd 期望的响应指令
+     * @return 符合预期时返回响应指令本身
+     */
+    protected XsCommand checkRespond(XsCommand res, int resArg, int resCmd) {
         if (res.cmd == XsCmd.XS_CMD_ERR && resCmd != XsCmd.XS_CMD_ERR) {
-            throw new XsException(res.buf.toString(), res.getArg());
+            throw new XsException(res.getBufString(StandardCharsets.UTF_8), res.getArg());
         }
         if (res.cmd != resCmd || (resArg != XsCmd.XS_CMD_NONE && res.getArg() != resArg)) {
             throw new XsException("Unexpected respond {CMD: " + res.cmd + ", ARG:" + res.getArg() + "}");
@@ -175,6 +373,156 @@ public class XsServer extends XsComponent implements AutoCloseable{
         return res;
     }
 
+    /**
+     * 异步执行服务端指令
+     * 首次调用时当前连接会被注册到事件循环（默认为{@link XsEventLoop#getDefault()}）并切换为异步模式，
+     * 此后同步方法也会通过事件循环收发数据，因此异步回调中不能再调用同步方法
+     * 对于无需响应的指令（cmd带有0x80标志），只会加入发送缓冲区并立即返回结果为null的Future
+     * @param cmd 指令
+     * @param resArg 期望的响应参数
+     * @param resCmd 期望的响应指令
+     * @return 收到符合预期的响应后完成的Future，出错时以{@link XsException}异常完成
+     */
+    public CompletableFuture<XsCommand> execCommandAsync(XsCommand cmd, int resArg, int resCmd) {
+        if ((cmd.cmd & 0x80) > 0) {
+            this.sendBuffer.append(cmd);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (this.async == null && !(this.channel instanceof SocketChannel)) {
+            try {
+                return CompletableFuture.completedFuture(this.execBlocking(cmd, resArg, resCmd));
+            } catch (XsException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return this.submit(cmd, XsAsyncChannel.single()).thenApply(res -> this.checkRespond(res, resArg, resCmd));
+    }
+
+    public CompletableFuture<XsCommand> execCommandAsync(XsCommand cmd, int resArg) {
+        return this.execCommandAsync(cmd, resArg, XsCmd.XS_CMD_OK);
+    }
+
+    public CompletableFuture<XsCommand> execCommandAsync(XsCommand cmd) {
+        return this.execCommandAsync(cmd, XsCmd.XS_CMD_NONE, XsCmd.XS_CMD_OK);
+    }
+
+    /**
+     * 设置异步模式使用的事件循环
+     * 需要在首次调用异步方法前设置
+     * @param eventLoop 事件循环
+     */
+    public void setEventLoop(XsEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * 设置异步模式下的流水线窗口大小
+     * 窗口大于1时，连续调用的异步指令会直接背靠背发送而不必等待前一个指令的响应，
+     * 服务端按顺序返回的响应再依次匹配给各自的Future，在网络延迟较高时可大幅减少等待时间
+     * @param window 允许同时等待响应的指令数量，默认为1
+     */
+    public void setPipelineWindow(int window) {
+        if (window < 1) {
+            throw new XsException("Invalid pipeline window: " + window);
+        }
+        this.pipelineWindow = window;
+        if (this.async != null) {
+            this.async.setWindow(window);
+        }
+    }
+
+    /**
+     * 连同发送缓冲区中的指令一起异步发送，并由处理器处理响应
+     * @param cmd 指令
+     * @param handler 响应处理器
+     * @return 处理器得到完整响应后完成的Future
+     */
+    <T> CompletableFuture<T> submit(XsCommand cmd, XsAsyncChannel.Handler<T> handler) {
+        XsAsyncChannel async;
+        try {
+            async = this.toAsync();
+        } catch (XsException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        this.sendBuffer.append(cmd);
+        CompletableFuture<T> future = async.submit(this.sendBuffer.detach(), handler);
+        if (this.node != null) {
+            long start = System.nanoTime();
+            future.whenComplete((result, e) -> {
+                if (e == null) {
+                    this.onRespond(start);
+                } else if (!async.isOpen()) {
+                    this.onBroken();
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * 将一次请求的耗时计入所属节点的统计
+     * @param start 请求开始时间
+     */
+    private void onRespond(long start) {
+        XsBalancer.Node<?> node = this.node;
+        if (node != null) {
+            node.onSuccess(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 将连接出错计入所属节点的统计
+     */
+    private void onBroken() {
+        XsBalancer.Node<?> node = this.node;
+        if (node != null && !this.failed) {
+            this.failed = true;
+            node.onFailure();
+        }
+    }
+
+    private XsAsyncChannel toAsync() {
+        if (this.async == null) {
+            this.check();
+            if (!(this.channel instanceof SocketChannel)) {
+                throw new XsException("Asynchronous command requires a socket connection");
+            }
+            XsEventLoop eventLoop = this.eventLoop != null ? this.eventLoop : XsEventLoop.getDefault();
+            // 异步模式下由事件循环负责等待及超时检查
+            this.closeSelector();
+            if (this.decoder == null) {
+                this.decoder = new XsFrameDecoder(this.recvBufferSize, this.recvBufferDirect);
+            }
+            this.async = eventLoop.register((SocketChannel) this.channel, this.decoder);
+            if (this.pipelineWindow > 1) {
+                this.async.setWindow(this.pipelineWindow);
+            }
+            if (this.ioTimeout > 0) {
+                this.async.setTimeout(this.ioTimeout);
+            }
+        }
+        return this.async;
+    }
+
+    /**
+     * 等待异步结果
+     * @param future 异步结果
+     * @return 结果
+     */
+    protected <T> T await(CompletableFuture<T> future) {
+        if (!future.isDone() && XsEventLoop.inEventLoop()) {
+            throw new XsException("Blocking call is not allowed in event loop thread");
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new XsException(String.valueOf(e.getCause()), e.getCause());
+        }
+    }
+
     public XsCommand execCommand(XsCommand cmd) {
         return execCommand(cmd, XsCmd.XS_CMD_NONE, XsCmd.XS_CMD_OK);
     }
@@ -195,118 +543,163 @@ public class XsServer extends XsComponent implements AutoCloseable{
         return execCommand(new XsCommand(cmd), resArg, resCmd);
     }
 
-    protected void write(ArrayList<Byte> buf, int len) {
-        if (len == 0 && buf.isEmpty()) {
-            return;
-        }
-        this.check();
-        WritableByteChannel channel = (WritableByteChannel) this.channel;
+    /**
+     * 发送缓冲区中的全部数据
+     */
+    protected void flush() {
         try {
-            ByteBuffer byteBuffer = ByteBuffer.allocate(buf.size());
-            for (int i=0;i<buf.size(); i++) {
-                byteBuffer.put(buf.get(i));
-            }
-            channel.write(byteBuffer);
-        } catch (Exception e) {
-            this.close(true);
-            throw new XsException("Failed to send the data to server completely REASON:" + (channel.isOpen() ? "unknown":"closed"));
+            this.write(this.sendBuffer.toBuffers());
+        } finally {
+            this.sendBuffer.clear();
         }
     }
 
-    protected void write(ArrayList<Byte> buf) {
-        write(buf, 0);
-    }
-
     /**
-     * 写入数据
-     * @param buf
-     * @param len
+     * 以聚集写入的方式写入数据
+     * @param bufs 依次写入的数据块
      */
-    protected void write(String buf, int len) {
-        //注意这里的编码选择，具体见XsCommand
-        byte[] bufBytes = buf.getBytes(StandardCharsets.ISO_8859_1);
-        if (len == 0 && bufBytes.length == 0){
-            return;
-        }
-
+    protected void write(ByteBuffer... bufs) {
         this.check();
-        WritableByteChannel channel = (WritableByteChannel) this.channel;
+        GatheringByteChannel channel = (GatheringByteChannel) this.channel;
+        long deadline = this.deadline();
         try {
-            channel.write(ByteBuffer.wrap(bufBytes));
+            int last = 0;
+            while (last < bufs.length) {
+                if (channel.write(bufs, last, bufs.length - last) == 0 && this.selector != null) {
+                    this.waitFor(SelectionKey.OP_WRITE, deadline);
+                }
+                while (last < bufs.length && !bufs[last].hasRemaining()) {
+                    last++;
+                }
+            }
         } catch (Exception e) {
+            String reason = e instanceof SocketTimeoutException ? "timeout" : (channel.isOpen() ? "unknown" : "closed");
             this.close(true);
-            throw new XsException("Failed to send the data to server completely REASON:" + (channel.isOpen() ? "unknown":"closed"));
+            throw new XsException("Failed to send the data to server completely REASON:" + reason, e);
         }
     }
 
-    protected void write(String buf) {
-        write(buf, 0);
-    }
-
-    protected void write(byte[] buf, int len) {
-        if (len == 0 && buf.length == 0){
+    protected void write(byte[] buf) {
+        if (buf.length == 0){
             return;
         }
-
-        this.check();
-        WritableByteChannel channel = (WritableByteChannel) this.channel;
-        try {
-            channel.write(ByteBuffer.wrap(buf));
-        } catch (Exception e) {
-            this.close(true);
-            throw new XsException("Failed to send the data to server completely REASON:" + (channel.isOpen() ? "unknown":"closed"));
-        }
+        this.write(ByteBuffer.wrap(buf));
     }
 
-    protected void write(byte[] buf) {
-        write(buf, 0);
+    /**
+     * 设置接收缓冲区
+     * 响应数据先读入接收缓冲区再从中切分出各个响应包，需要在连接后首次读取响应前设置
+     * @param size 初始大小（字节），遇到更大的响应包时会自动扩大，默认为8KB
+     * @param direct 是否使用堆外内存
+     */
+    public void setRecvBuffer(int size, boolean direct) {
+        this.recvBufferSize = size;
+        this.recvBufferDirect = direct;
     }
 
     /**
      * 从服务器读取响应指令
-     * @return 成功返回响应指令
+     * @return 成功返回响应指令，其数据为独立的副本
      */
     public XsCommand getRespond() {
-//        String buf = this.read(8);//正常会读取到8字节长度
-        byte[] bufBytes = this.read(8);
-        XsCommand res = new XsCommand((int)(bufBytes[0]&0xFF));
-        res.arg1 = (int)(bufBytes[1] & 0xFF);//安全将无符号数字转换为java中的数字
-        res.arg2 = (int)(bufBytes[2] & 0xFF);
-        int blen1 = (int)(bufBytes[3] & 0xFF);
-        int blen = ByteBuffer.wrap(bufBytes, 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
-        res.buf = ByteBuffer.wrap(this.read(blen)).order(ByteOrder.LITTLE_ENDIAN);
-        res.buf1 = ByteBuffer.wrap(this.read(blen1)).order(ByteOrder.LITTLE_ENDIAN);
-        return res;
+        if (this.async != null) {
+            return this.await(this.async.submit(null, XsAsyncChannel.single()));
+        }
+        return this.readRespond().copy();
     }
 
     /**
-     * 读取数据
-     * @param len 要读入的数据长度（字节）
-     * @return 成功时返回读到的字符串
+     * 从服务器读取响应指令，不复制数据
+     * 注意：响应指令的buf及buf1直接引用接收缓冲区，只在下一次读取响应前有效，仅供逐个处理后即丢弃响应的场合（如搜索结果）使用
+     * @return 成功返回响应指令
      */
-    protected byte[] read(int len) {
-        if (len == 0) {
-            return new byte[0];
-//            return "";
+    XsCommand readRespond() {
+        if (this.async != null) {
+            return this.await(this.async.submit(null, XsAsyncChannel.single()));
+        }
+        if (this.decoder == null) {
+            this.decoder = new XsFrameDecoder(this.recvBufferSize, this.recvBufferDirect);
+        }
+        XsCommand res;
+        long deadline = this.deadline();
+        while ((res = this.decoder.next()) == null) {
+            this.fill(this.decoder, deadline);
         }
+        return res;
+    }
+
+    /**
+     * 从连接中读取更多数据到解码器
+     * @param decoder 解码器
+     * @param deadline 等待数据的截止时间，未设置超时时忽略
+     */
+    private void fill(XsFrameDecoder decoder, long deadline) {
         this.check();
         ReadableByteChannel channel = (ReadableByteChannel) this.channel;
-        ByteBuffer byteBuffer = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
-//        StringBuilder stringBuilder = new StringBuilder();
+        int num;
         try {
-            while (true) {
-                int readByteNum = channel.read(byteBuffer);
-                if (readByteNum == -1 || readByteNum == 0) break;;
-//                stringBuilder.append(new String(byteBuffer.array(), StandardCharsets.UTF_8));
-                if (readByteNum >= len) break;
-//                byteBuffer.clear();
+            while ((num = decoder.readFrom(channel)) == 0 && this.selector != null) {
+                this.waitFor(SelectionKey.OP_READ, deadline);
             }
         } catch (Exception e) {
+            String reason = e instanceof SocketTimeoutException ? "timeout" : (channel.isOpen() ? "unknown" : "closed");
+            this.close(true);
+            throw new XsException("Failed to recv the data from server completely REASON: " + reason, e);
+        }
+        if (num < 0) {
             this.close(true);
-            throw new RuntimeException("Failed to recv the data from server completely" + "REASON: " + (channel.isOpen() ? "unknown" : "closed"), e);
+            throw new XsException("Failed to recv the data from server completely REASON: closed");
+        }
+    }
+
+    /**
+     * 计算本次读写的截止时间
+     * @return System.nanoTime()形式的截止时间
+     */
+    private long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.ioTimeout);
+    }
+
+    /**
+     * 等待通道可读或可写
+     * @param ops 等待的事件，{@link SelectionKey#OP_READ}或{@link SelectionKey#OP_WRITE}
+     * @param deadline 截止时间
+     * @throws SocketTimeoutException 超过截止时间仍未就绪时
+     */
+    private void waitFor(int ops, long deadline) throws IOException {
+        SelectionKey key = ((SelectableChannel) this.channel).keyFor(this.selector);
+        key.interestOps(ops);
+        while (true) {
+            long remain = deadline - System.nanoTime();
+            if (remain <= 0) {
+                throw new SocketTimeoutException("Timed out after " + this.ioTimeout + "ms");
+            }
+            if (this.selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remain))) > 0) {
+                this.selector.selectedKeys().clear();
+                return;
+            }
+        }
+    }
+
+    private void closeSelector() {
+        if (this.selector != null) {
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            this.selector = null;
+        }
+    }
+
+    private void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
         }
-        return byteBuffer.array();
-//        return new String(byteBuffer.array(), StandardCharsets.UTF_8);
     }
 
     protected void check() {
@@ -0,0 +1,475 @@
+package com.hangjiayun.infrastructure;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 服务端连接池
+ * 用于在多线程环境下复用已经建立好并绑定了项目（{@link XsServer#setProject}）的连接，避免每次请求都重新建立TCP连接
+ * 从连接池借出的连接在调用{@link XsServer#close()}后会自动归还到连接池，而不是真正断开
+ * 注意：同一个连接在借出期间只能由一个线程使用
+ * @param <T> 连接类型，如{@link XsSearch}、{@link XsIndex}
+ */
+public class XsServerPool<T extends XsServer> implements AutoCloseable {
+    /**
+     * 创建新连接的工厂，返回的连接必须已经完成连接及项目绑定
+     */
+    private final Supplier<T> factory;
+    /**
+     * 空闲连接，队首为最近归还的连接
+     */
+    private final ArrayDeque<Idle<T>> idles = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = this.lock.newCondition();
+    /**
+     * 当前存活的连接总数（包括借出及空闲的连接）
+     */
+    private int total = 0;
+    private int minSize = 0;
+    private int maxSize;
+    /**
+     * 借出连接时的最长等待毫秒数，小于等于0表示一直等待
+     */
+    private long maxWait = 3000;
+    /**
+     * 空闲连接的最长保留毫秒数，小于等于0表示不回收空闲连接
+     */
+    private long idleTimeout = 0;
+    /**
+     * 空闲连接的保活间隔毫秒数，小于等于0表示不保活
+     */
+    private long keepAlive = 0;
+    /**
+     * 借出连接前的额外校验，返回false时该连接将被丢弃
+     */
+    private Predicate<T> validator;
+    private ScheduledExecutorService maintainer;
+    private volatile boolean closed = false;
+
+    public XsServerPool(Supplier<T> factory, int maxSize) {
+        if (maxSize < 1) {
+            throw new XsException("Invalid max size of connection pool: " + maxSize);
+        }
+        this.factory = factory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 设置连接池保持的最少连接数
+     * 不足时由后台维护线程补足，需同时设置{@link #setIdleTimeout}才会启动维护线程
+     * @param minSize 最少连接数，不能超过最大连接数
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsServerPool<T> setMinSize(int minSize) {
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        return this;
+    }
+
+    /**
+     * 设置借出连接时的最长等待时间
+     * @param millis 毫秒数，小于等于0表示一直等待直到有可用连接
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsServerPool<T> setMaxWait(long millis) {
+        this.maxWait = millis;
+        return this;
+    }
+
+    /**
+     * 设置空闲连接回收时间，并启动后台维护线程
+     * @param millis 空闲超过该毫秒数的连接将被关闭，小于等于0表示不回收
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsServerPool<T> setIdleTimeout(long millis) {
+        this.idleTimeout = millis;
+        this.schedule();
+        return this;
+    }
+
+    /**
+     * 设置空闲连接的保活间隔，并启动后台维护线程
+     * 空闲超过该间隔的连接会由维护线程调用{@link XsServer#keepAlive()}，避免被服务端因空闲超时断开，
+     * 保活失败的连接会被关闭并重新建立，因此借出的连接总是可用的
+     * @param millis 毫秒数，小于等于0表示不保活
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsServerPool<T> setKeepAlive(long millis) {
+        this.keepAlive = millis;
+        this.schedule();
+        return this;
+    }
+
+    /**
+     * 设置借出连接前的额外校验
+     * 默认仅检查连接是否处于打开状态，有需要时可以在此发送一个命令来确认连接可用
+     * @param validator 校验函数，返回false时该连接将被关闭并重新获取
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsServerPool<T> setValidator(Predicate<T> validator) {
+        this.validator = validator;
+        return this;
+    }
+
+    /**
+     * 借出一个可用连接
+     * 优先使用空闲连接，没有空闲连接且未达到上限时创建新连接，否则等待其他线程归还
+     * @return 已绑定项目的连接，使用完毕后请调用其close()方法归还
+     */
+    public T borrow() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.maxWait);
+        while (true) {
+            T server = null;
+            this.lock.lock();
+            try {
+                while (true) {
+                    if (this.closed) {
+                        throw new XsException("Connection pool has been closed");
+                    }
+                    Idle<T> idle = this.idles.pollFirst();
+                    if (idle != null) {
+                        server = idle.server;
+                        break;
+                    }
+                    if (this.total < this.maxSize) {
+                        this.total++;
+                        break;
+                    }
+                    if (this.maxWait <= 0) {
+                        this.available.await();
+                    } else {
+                        long remain = deadline - System.nanoTime();
+                        if (remain <= 0) {
+                            throw new XsException("Timeout waiting for idle connection (MAX: " + this.maxSize + ")");
+                        }
+                        this.available.awaitNanos(remain);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XsException("Interrupted while waiting for idle connection", e);
+            } finally {
+                this.lock.unlock();
+            }
+
+            if (server == null) {
+                server = this.create();
+                server.borrowed = true;
+                return server;
+            }
+            if (this.validate(server)) {
+                server.borrowed = true;
+                return server;
+            }
+            this.destroy(server);
+        }
+    }
+
+    /**
+     * 归还连接，由{@link XsServer#close()}调用
+     * 重复归还的连接不做任何操作；已断开、出错或无法还原设置（{@link XsServer#reset()}）的连接将直接丢弃
+     * @param server 借出的连接
+     */
+    void recycle(XsServer server) {
+        this.lock.lock();
+        try {
+            if (!server.borrowed) {
+                return;
+            }
+            server.borrowed = false;
+        } finally {
+            this.lock.unlock();
+        }
+        boolean reusable;
+        try {
+            reusable = !this.closed && server.isConnected() && server.reset();
+        } catch (RuntimeException e) {
+            reusable = false;
+        }
+        if (!reusable) {
+            this.destroy(server);
+            return;
+        }
+        this.offer(server);
+    }
+
+    /**
+     * 放入空闲队列
+     * @param server 可用的连接
+     */
+    @SuppressWarnings("unchecked")
+    private void offer(XsServer server) {
+        this.lock.lock();
+        try {
+            if (!this.closed) {
+                this.idles.offerFirst(new Idle<>((T) server, System.nanoTime()));
+                this.available.signal();
+                return;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        this.destroy(server);
+    }
+
+    /**
+     * 获取当前存活的连接总数
+     * @return 借出及空闲的连接数之和
+     */
+    public int getSize() {
+        this.lock.lock();
+        try {
+            return this.total;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * 获取当前空闲的连接数
+     * @return 空闲连接数
+     */
+    public int getIdleSize() {
+        this.lock.lock();
+        try {
+            return this.idles.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * 回收超时的空闲连接，并补足最少连接数
+     * 通常由后台维护线程定时调用
+     */
+    public void evict() {
+        ArrayDeque<XsServer> expired = new ArrayDeque<>();
+        int missing;
+        this.lock.lock();
+        try {
+            long now = System.nanoTime();
+            // 从最久未使用的一端开始回收
+            Iterator<Idle<T>> it = this.idles.descendingIterator();
+            while (it.hasNext() && this.total - expired.size() > this.minSize) {
+                Idle<T> idle = it.next();
+                if (this.idleTimeout <= 0 || now - idle.since < TimeUnit.MILLISECONDS.toNanos(this.idleTimeout)) {
+                    break;
+                }
+                it.remove();
+                expired.add(idle.server);
+            }
+            missing = this.closed ? 0 : this.minSize - (this.total - expired.size());
+        } finally {
+            this.lock.unlock();
+        }
+        for (XsServer server : expired) {
+            this.destroy(server);
+        }
+        this.refill(missing, this.minSize);
+    }
+
+    /**
+     * 对空闲超过保活间隔的连接进行保活，保活失败的连接将被关闭并重新建立
+     * 通常由后台维护线程定时调用
+     */
+    public void keepAlive() {
+        if (this.keepAlive <= 0) {
+            return;
+        }
+        ArrayDeque<Idle<T>> due = new ArrayDeque<>();
+        this.lock.lock();
+        try {
+            long now = System.nanoTime();
+            Iterator<Idle<T>> it = this.idles.iterator();
+            while (it.hasNext()) {
+                Idle<T> idle = it.next();
+                if (now - idle.pingedAt >= TimeUnit.MILLISECONDS.toNanos(this.keepAlive)) {
+                    // 保活期间从空闲队列中取出，以免同时被借出
+                    it.remove();
+                    due.add(idle);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        int dead = 0;
+        for (Idle<T> idle : due) {
+            try {
+                idle.server.keepAlive();
+                idle.pingedAt = System.nanoTime();
+            } catch (RuntimeException e) {
+                this.destroy(idle.server);
+                dead++;
+                continue;
+            }
+            this.lock.lock();
+            try {
+                if (!this.closed) {
+                    this.idles.offerLast(idle);
+                    this.available.signal();
+                    continue;
+                }
+            } finally {
+                this.lock.unlock();
+            }
+            this.destroy(idle.server);
+        }
+        this.refill(dead, this.maxSize);
+    }
+
+    /**
+     * 关闭连接池及所有空闲连接
+     * 借出中的连接将在归还时被关闭
+     */
+    @Override
+    public void close() {
+        ArrayDeque<Idle<T>> idles;
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            idles = new ArrayDeque<>(this.idles);
+            this.idles.clear();
+            this.available.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        if (this.maintainer != null) {
+            this.maintainer.shutdownNow();
+        }
+        for (Idle<T> idle : idles) {
+            this.destroy(idle.server);
+        }
+    }
+
+    /**
+     * 新建连接放入空闲队列
+     * @param count 最多新建的连接数
+     * @param limit 新建后连接总数的上限
+     */
+    private void refill(int count, int limit) {
+        for (int i = 0; i < count; i++) {
+            this.lock.lock();
+            try {
+                if (this.closed || this.total >= limit) {
+                    break;
+                }
+                this.total++;
+            } finally {
+                this.lock.unlock();
+            }
+            try {
+                this.offer(this.create());
+            } catch (RuntimeException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 创建新连接，调用前必须已经占用了一个连接名额
+     * @return 新连接
+     */
+    private T create() {
+        T server;
+        try {
+            server = this.factory.get();
+        } catch (RuntimeException e) {
+            this.release();
+            throw e;
+        }
+        server.pool = this;
+        return server;
+    }
+
+    private boolean validate(T server) {
+        if (!server.isConnected()) {
+            return false;
+        }
+        try {
+            return this.validator == null || this.validator.test(server);
+        } catch (XsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 真正关闭连接并释放其占用的名额
+     * @param server 要关闭的连接
+     */
+    private void destroy(XsServer server) {
+        server.pool = null;
+        try {
+            server.close(!server.isConnected());
+        } catch (RuntimeException e) {
+            // 连接已不可用，忽略关闭时的错误
+        }
+        this.release();
+    }
+
+    private void release() {
+        this.lock.lock();
+        try {
+            this.total--;
+            this.available.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * 按空闲回收时间及保活间隔（重新）启动后台维护线程
+     */
+    private synchronized void schedule() {
+        if (this.maintainer != null) {
+            this.maintainer.shutdownNow();
+            this.maintainer = null;
+        }
+        long interval = Long.MAX_VALUE;
+        if (this.idleTimeout > 0) {
+            interval = this.idleTimeout;
+        }
+        if (this.keepAlive > 0) {
+            interval = Math.min(interval, this.keepAlive);
+        }
+        if (interval == Long.MAX_VALUE) {
+            return;
+        }
+        long period = Math.max(1000, interval / 2);
+        this.maintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "xs-pool-maintainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maintainer.scheduleWithFixedDelay(() -> {
+            this.evict();
+            this.keepAlive();
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 空闲连接及其归还时间
+     */
+    private static class Idle<T> {
+        final T server;
+        final long since;
+        /**
+         * 最近一次保活（或归还）的时间
+         */
+        long pingedAt;
+
+        Idle(T server, long since) {
+            this.server = server;
+            this.since = since;
+            this.pingedAt = since;
+        }
+    }
+}
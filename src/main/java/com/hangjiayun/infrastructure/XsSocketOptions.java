@@ -0,0 +1,112 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+
+/**
+ * 服务端连接的套接字参数
+ * 通常由项目配置生成，见{@link Xs#getSocketOptions(String)}
+ */
+public class XsSocketOptions {
+    /**
+     * 建立连接的超时毫秒数，小于等于0表示不限制
+     */
+    private int connectTimeout = 5000;
+    /**
+     * 发送数据及等待响应的超时毫秒数，小于等于0表示不限制
+     * 默认不限制，索引提交、重建等命令的耗时取决于服务端，超时后连接会被关闭而服务端的执行结果无从得知，需要时请显式设置
+     */
+    private int timeout = 0;
+    /**
+     * 是否禁用Nagle算法，命令封包大多只有几十个字节，默认禁用以免被延迟发送
+     */
+    private boolean tcpNoDelay = true;
+    private boolean keepAlive = false;
+    /**
+     * 套接字发送缓冲区字节数，小于等于0表示使用系统默认值
+     */
+    private int sendBufferSize = 0;
+    /**
+     * 套接字接收缓冲区字节数，小于等于0表示使用系统默认值
+     */
+    private int receiveBufferSize = 0;
+
+    public XsSocketOptions setConnectTimeout(int millis) {
+        this.connectTimeout = millis;
+        return this;
+    }
+
+    public XsSocketOptions setTimeout(int millis) {
+        this.timeout = millis;
+        return this;
+    }
+
+    public XsSocketOptions setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public XsSocketOptions setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    public XsSocketOptions setSendBufferSize(int size) {
+        this.sendBufferSize = size;
+        return this;
+    }
+
+    public XsSocketOptions setReceiveBufferSize(int size) {
+        this.receiveBufferSize = size;
+        return this;
+    }
+
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    public int getTimeout() {
+        return this.timeout;
+    }
+
+    public boolean isTcpNoDelay() {
+        return this.tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return this.keepAlive;
+    }
+
+    public int getSendBufferSize() {
+        return this.sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return this.receiveBufferSize;
+    }
+
+    /**
+     * 将参数设置到通道上，通道不支持的参数（如Unix域套接字的TCP_NODELAY）将被忽略
+     * 接收缓冲区大小影响TCP窗口的协商，因此应在连接前调用
+     * @param channel 套接字通道
+     * @throws IOException 设置出错时
+     */
+    void apply(SocketChannel channel) throws IOException {
+        Set<SocketOption<?>> supported = channel.supportedOptions();
+        if (supported.contains(StandardSocketOptions.TCP_NODELAY)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, this.tcpNoDelay);
+        }
+        if (supported.contains(StandardSocketOptions.SO_KEEPALIVE)) {
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, this.keepAlive);
+        }
+        if (this.sendBufferSize > 0 && supported.contains(StandardSocketOptions.SO_SNDBUF)) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, this.sendBufferSize);
+        }
+        if (this.receiveBufferSize > 0 && supported.contains(StandardSocketOptions.SO_RCVBUF)) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, this.receiveBufferSize);
+        }
+    }
+}
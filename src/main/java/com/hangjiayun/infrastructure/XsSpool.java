@@ -0,0 +1,320 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * 索引缓冲区的预写日志
+ * 命令进入{@link XsIndex}的缓冲区之前先编码追加到内存映射的日志文件中，缓冲区提交并被服务端确认（XS_CMD_OK_RQST_FINISHED）后截断；
+ * 进程崩溃或服务端中断导致缓冲区数据未能提交时，下次设置到索引对象上会先重新提交日志中未确认的数据，即至少提交一次
+ * 日志由若干个段文件组成，每段文件头部记录已确认的位置，之后是连续的记录，每条记录为长度、CRC32C校验值及一次追加的命令封包，
+ * 校验不通过的记录（如写入中途崩溃）及其后的数据会被忽略
+ * 映射内存的修改在进程崩溃后仍会由操作系统写入文件，如需防止断电丢失请在适当的时机调用{@link #sync()}
+ * 每个日志目录同一时间只能由一个索引对象使用
+ * @see XsIndex#setSpool(XsSpool)
+ */
+public class XsSpool implements AutoCloseable {
+    private static final int MAGIC = 0x58535350;
+    /**
+     * 段文件头部：MAGIC、保留、已确认的位置
+     */
+    private static final int HEADER_SIZE = 16;
+    /**
+     * 记录头部：封包长度、CRC32C校验值
+     */
+    private static final int RECORD_HEADER = 8;
+    /**
+     * 重新提交时每个XS_CMD_INDEX_EXDATA的最大字节数
+     */
+    private static final int REPLAY_CHUNK = 4 << 20;
+
+    private final Path dir;
+    private final int segmentSize;
+    /**
+     * 按顺序排列的段，最后一个为当前写入的段
+     */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final CRC32C crc = new CRC32C();
+
+    public XsSpool(Path dir) {
+        this(dir, 64 << 20);
+    }
+
+    /**
+     * 打开日志目录，不存在时自动创建，已有的段文件会被读取
+     * @param dir 日志目录
+     * @param segmentSize 每段文件的字节数，单次追加的数据超过该大小时独占一段
+     */
+    public XsSpool(Path dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = Math.max(HEADER_SIZE + RECORD_HEADER, segmentSize);
+        List<Path> files = new ArrayList<>();
+        try {
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "spool-*.wal")) {
+                for (Path file : stream) {
+                    files.add(file);
+                }
+            }
+            // 文件名中的序号是定长的，按名称排序即按写入顺序
+            Collections.sort(files);
+            for (Path file : files) {
+                this.segments.add(this.open(file));
+            }
+        } catch (IOException e) {
+            this.close();
+            throw new XsException("Failed to open index spool: " + dir, e);
+        } catch (RuntimeException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 追加命令，作为一条记录
+     * @param cmds 命令
+     */
+    void append(List<XsCommand> cmds) {
+        int len = 0;
+        for (XsCommand cmd : cmds) {
+            len += cmd.getEncodedLength();
+        }
+        Segment segment = this.segments.peekLast();
+        if (segment == null || segment.map.capacity() - segment.position < RECORD_HEADER + len) {
+            segment = this.create(RECORD_HEADER + len);
+        }
+        MappedByteBuffer map = segment.map;
+        int start = segment.position + RECORD_HEADER;
+        ByteBuffer out = map.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(start);
+        for (XsCommand cmd : cmds) {
+            cmd.encodeTo(out);
+        }
+        if (map.capacity() - out.position() >= 4) {
+            // 标记结束位置，以免崩溃后重新打开时把覆盖剩余的旧数据当作记录
+            map.putInt(out.position(), 0);
+        }
+        this.crc.reset();
+        this.crc.update(map.duplicate().position(start).limit(start + len));
+        // 先写数据再写头部，头部不完整时记录校验不通过
+        map.putInt(segment.position + 4, (int) this.crc.getValue());
+        map.putInt(segment.position, len);
+        segment.position = start + len;
+    }
+
+    void append(XsCommand cmd) {
+        this.append(Collections.singletonList(cmd));
+    }
+
+    /**
+     * 确认已追加的全部记录，删除已确认的段文件
+     */
+    void trim() {
+        while (this.segments.size() > 1) {
+            this.segments.pollFirst().delete();
+        }
+        Segment segment = this.segments.peekFirst();
+        if (segment != null) {
+            segment.setTrim(segment.position);
+        }
+    }
+
+    /**
+     * 判断是否有未确认的记录
+     * @return 没有未确认的记录时返回true
+     */
+    public boolean isEmpty() {
+        return this.getPending() == 0;
+    }
+
+    /**
+     * 获取未确认的记录的字节数
+     * @return 字节数，包括记录头部
+     */
+    public long getPending() {
+        long pending = 0;
+        for (Segment segment : this.segments) {
+            pending += segment.position - segment.trim;
+        }
+        return pending;
+    }
+
+    /**
+     * 把未确认的记录重新提交，全部提交成功后确认
+     * @param submit 提交命令封包的方法，参数为连续的命令封包，所在的缓冲区在方法返回后会被重用
+     * @return 重新提交的记录数
+     */
+    int replay(Consumer<ByteBuffer> submit) {
+        XsExdataBuffer data = new XsExdataBuffer(0, false);
+        int count = 0;
+        for (Segment segment : this.segments) {
+            int pos = segment.trim;
+            while (pos < segment.position) {
+                int len = segment.map.getInt(pos);
+                if (!data.isEmpty() && data.length() + len > REPLAY_CHUNK) {
+                    submit.accept(data.view());
+                    data.clear();
+                }
+                data.append(segment.map.duplicate().position(pos + RECORD_HEADER).limit(pos + RECORD_HEADER + len));
+                pos += RECORD_HEADER + len;
+                count++;
+            }
+        }
+        if (!data.isEmpty()) {
+            submit.accept(data.view());
+        }
+        this.trim();
+        return count;
+    }
+
+    /**
+     * 把映射内存中的修改写入磁盘
+     */
+    public void sync() {
+        for (Segment segment : this.segments) {
+            segment.map.force();
+        }
+    }
+
+    /**
+     * 关闭日志，未确认的记录保留在文件中
+     */
+    @Override
+    public void close() {
+        for (Segment segment : this.segments) {
+            segment.close();
+        }
+        this.segments.clear();
+    }
+
+    /**
+     * 打开已有的段文件，找出其中有效数据的结束位置
+     */
+    private Segment open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment;
+        try {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new XsException("Invalid index spool segment: " + file);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            long trim = map.getLong(8);
+            if (map.getInt(0) != MAGIC || trim < HEADER_SIZE || trim > map.capacity()) {
+                throw new XsException("Invalid index spool segment: " + file);
+            }
+            segment = new Segment(file, channel, map, (int) trim);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        int pos = segment.trim;
+        while (segment.map.capacity() - pos >= RECORD_HEADER) {
+            int len = segment.map.getInt(pos);
+            if (len <= 0 || len > segment.map.capacity() - pos - RECORD_HEADER) {
+                break;
+            }
+            this.crc.reset();
+            this.crc.update(segment.map.duplicate().position(pos + RECORD_HEADER).limit(pos + RECORD_HEADER + len));
+            if ((int) this.crc.getValue() != segment.map.getInt(pos + 4)) {
+                break;
+            }
+            pos += RECORD_HEADER + len;
+        }
+        segment.position = pos;
+        return segment;
+    }
+
+    /**
+     * 创建新的段文件并作为当前写入的段
+     * @param need 需要写入的字节数
+     */
+    private Segment create(int need) {
+        Segment last = this.segments.peekLast();
+        long no = last == null ? 0 : last.no() + 1;
+        Path file = this.dir.resolve(String.format("spool-%016d.wal", no));
+        int size = Math.max(this.segmentSize, HEADER_SIZE + need);
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer map;
+            try {
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            map.putInt(0, MAGIC);
+            map.putLong(8, HEADER_SIZE);
+            Segment segment = new Segment(file, channel, map, HEADER_SIZE);
+            segment.position = HEADER_SIZE;
+            this.segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new XsException("Failed to create index spool segment: " + file, e);
+        }
+    }
+
+    /**
+     * 段文件
+     */
+    private static final class Segment {
+        private final Path file;
+        private final FileChannel channel;
+        private final MappedByteBuffer map;
+        /**
+         * 已确认的位置
+         */
+        private int trim;
+        /**
+         * 有效数据的结束位置，即下一条记录的写入位置
+         */
+        private int position;
+
+        Segment(Path file, FileChannel channel, MappedByteBuffer map, int trim) {
+            this.file = file;
+            this.channel = channel;
+            this.map = map;
+            this.trim = trim;
+        }
+
+        long no() {
+            String name = this.file.getFileName().toString();
+            return Long.parseLong(name.substring(6, name.length() - 4));
+        }
+
+        void setTrim(int trim) {
+            this.trim = trim;
+            this.map.putLong(8, trim);
+        }
+
+        void close() {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+
+            }
+        }
+
+        void delete() {
+            this.close();
+            try {
+                Files.deleteIfExists(this.file);
+            } catch (IOException e) {
+                throw new XsException("Failed to delete index spool segment: " + this.file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.hangjiayun.infrastructure;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix域套接字连接
+ * 用于与本机上的服务端通信，省去TCP回环协议栈的开销
+ * 需要Java 16及以上版本，在多版本JAR中由META-INF/versions/16下的实现替换本类
+ */
+class XsUnixSocket {
+    /**
+     * 连接到Unix域套接字
+     * @param path 套接字文件路径
+     * @return 已连接的阻塞模式通道
+     */
+    static SocketChannel open(String path) {
+        throw new XsException("Unix domain socket requires Java 16 or later(C#unix://" + path + ")");
+    }
+}
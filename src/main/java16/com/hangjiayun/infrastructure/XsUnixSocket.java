@@ -0,0 +1,25 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.InvalidPathException;
+
+/**
+ * Unix域套接字连接
+ * 用于与本机上的服务端通信，省去TCP回环协议栈的开销
+ */
+class XsUnixSocket {
+    /**
+     * 连接到Unix域套接字
+     * @param path 套接字文件路径
+     * @return 已连接的阻塞模式通道
+     */
+    static SocketChannel open(String path) {
+        try {
+            return SocketChannel.open(UnixDomainSocketAddress.of(path));
+        } catch (IOException | InvalidPathException e) {
+            throw new XsException(e.getMessage() + "(C#unix://" + path + ")", e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.hangjiayun.infrastructure;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XsBulkIndexerTest {
+    private XsStubServer stub;
+    private Xs xs;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.stub = new XsStubServer();
+        this.xs = new Xs("project.name = test\nserver.index = " + this.stub.getConn() + "\n[id]\ntype = id\n[body]\ntype = body\n");
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.xs.close();
+        this.stub.close();
+    }
+
+    @Test
+    void operationsCompleteAfterServerConfirms() {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        try (XsBulkIndexer bulk = new XsBulkIndexer(this.xs, 4, 100)) {
+            bulk.setBatchSize(4 << 10);
+            for (int i = 0; i < 1000; i++) {
+                futures.add(bulk.add(XsIndexTest.doc(i, "body" + i)));
+            }
+            futures.add(bulk.delete("1"));
+            futures.add(bulk.delete("2"));
+            bulk.flush().join();
+            assertEquals(1000, this.stub.getIndexRequestCount());
+            assertEquals(2, this.stub.getRemoveCount());
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    @Test
+    void closeSubmitsQueuedOperations() {
+        CompletableFuture<Void> last;
+        try (XsBulkIndexer bulk = new XsBulkIndexer(this.xs, 2, 10)) {
+            bulk.setBatchSize(1 << 20).setFlushInterval(60000);
+            for (int i = 0; i < 99; i++) {
+                bulk.add(XsIndexTest.doc(i, "body" + i));
+            }
+            last = bulk.add(XsIndexTest.doc(99, "body99"));
+        }
+        assertTrue(last.isDone());
+        assertEquals(100, this.stub.getIndexRequestCount());
+    }
+
+    @Test
+    void operationsFailWhenServerIsGone() {
+        CompletableFuture<Void> future;
+        try (XsBulkIndexer bulk = new XsBulkIndexer(this.xs, 1, 10)) {
+            bulk.add(XsIndexTest.doc(0, "body")).join();
+            this.stub.close();
+            future = bulk.add(XsIndexTest.doc(1, "body"));
+            bulk.flush().join();
+            assertTrue(future.isCompletedExceptionally());
+        }
+        assertThrows(CompletionException.class, future::join);
+    }
+
+    @Test
+    void interruptedCloseStillCompletesEveryOperation() {
+        this.stub.setLatency(50);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        XsBulkIndexer bulk = new XsBulkIndexer(this.xs, 4, 100);
+        bulk.setBatchSize(1 << 10);
+        for (int i = 0; i < 200; i++) {
+            futures.add(bulk.add(XsIndexTest.doc(i, "body" + i)));
+        }
+        Thread.currentThread().interrupt();
+        bulk.close();
+        assertTrue(Thread.interrupted());
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone());
+        }
+        assertEquals(200, this.stub.getIndexRequestCount());
+    }
+}
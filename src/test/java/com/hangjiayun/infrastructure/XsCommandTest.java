@@ -0,0 +1,27 @@
+package com.hangjiayun.infrastructure;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XsCommandTest {
+    @Test
+    void sharedEmptyDataIsReadOnly() {
+        XsCommand cmd = new XsCommand(XsCmd.XS_CMD_INDEX_COMMIT);
+        assertSame(XsCommand.EMPTY, cmd.buf);
+        assertThrows(ReadOnlyBufferException.class, () -> cmd.buf.put((byte) 1));
+        assertEquals(XsCommand.HEADER_SIZE, cmd.toBytes().remaining());
+    }
+
+    @Test
+    void encodedDataRoundTrips() {
+        XsCommand cmd = new XsCommand(XsCmd.XS_CMD_INDEX_REMOVE, 0, 1, ByteBuffer.wrap("abc".getBytes(StandardCharsets.UTF_8)));
+        ByteBuffer bytes = cmd.toBytes();
+        assertEquals(XsCommand.HEADER_SIZE + 3, bytes.remaining());
+        assertEquals("abc", cmd.copy().getBufString(StandardCharsets.UTF_8));
+    }
+}
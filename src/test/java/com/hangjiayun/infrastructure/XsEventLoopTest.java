@@ -0,0 +1,52 @@
+package com.hangjiayun.infrastructure;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XsEventLoopTest {
+    private XsStubServer stub;
+    private Xs xs;
+    private XsEventLoop loop;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.stub = new XsStubServer();
+        this.xs = new Xs("project.name = test\n[id]\ntype = id\n[body]\ntype = body\n");
+        this.loop = new XsEventLoop(1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.loop.close();
+        this.stub.close();
+    }
+
+    private XsServer connect() throws Exception {
+        XsServer server = new XsServer(this.stub.getConn(), this.xs);
+        server.setEventLoop(this.loop);
+        server.execCommandAsync(new XsCommand(XsCmd.XS_CMD_INDEX_GET_DB), XsCmd.XS_CMD_OK_DB_INFO).get(5, TimeUnit.SECONDS);
+        return server;
+    }
+
+    @Test
+    void taskErrorFailsOnlyItsChannel() throws Exception {
+        try (XsServer broken = this.connect(); XsServer other = this.connect()) {
+            // 空的数据块会在事件循环线程中加入发送队列时抛出异常
+            CompletableFuture<XsCommand> future = broken.async.submit(new ByteBuffer[]{null}, XsAsyncChannel.single());
+            assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertFalse(broken.async.isOpen());
+
+            XsCommand res = other.execCommandAsync(new XsCommand(XsCmd.XS_CMD_INDEX_GET_DB), XsCmd.XS_CMD_OK_DB_INFO).get(5, TimeUnit.SECONDS);
+            assertEquals("db", res.getBufString(StandardCharsets.UTF_8));
+        }
+    }
+}
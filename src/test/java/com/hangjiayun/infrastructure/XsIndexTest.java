@@ -0,0 +1,91 @@
+package com.hangjiayun.infrastructure;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XsIndexTest {
+    private XsStubServer primary;
+    private XsStubServer replica;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.primary = new XsStubServer();
+        this.replica = new XsStubServer();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.primary.close();
+        this.replica.close();
+    }
+
+    private Xs project(String index) {
+        return new Xs("project.name = test\nserver.index = " + index + "\n[id]\ntype = id\n[body]\ntype = body\n");
+    }
+
+    static XsDocument doc(int id, String body) {
+        XsDocument doc = new XsDocument((String) null, null);
+        doc.setField("id", String.valueOf(id));
+        doc.setField("body", body);
+        return doc;
+    }
+
+    @Test
+    void bufferSubmitsDocumentsAsExdata() {
+        Xs xs = this.project(this.primary.getConn());
+        try (XsIndex index = xs.borrowIndex()) {
+            index.openBuffer(1);
+            for (int i = 0; i < 100; i++) {
+                index.add(doc(i, "body" + i));
+            }
+            index.del("1", "2", "2");
+            index.closeBuffer();
+        }
+        xs.close();
+        assertEquals(100, this.primary.getIndexRequestCount());
+        assertEquals(2, this.primary.getRemoveCount());
+    }
+
+    @Test
+    void replicaReceivesCommandsOnlyAfterPrimarySucceeds() {
+        Xs xs = this.project(this.primary.getConn() + ";" + this.replica.getConn());
+        try (XsIndex index = xs.borrowIndex()) {
+            long base = this.replica.getCommandCount();
+            index.execCommand(new XsCommand(XsCmd.XS_CMD_INDEX_REQUEST));
+            assertThrows(XsException.class, () -> index.execCommand(new XsCommand(XsCmd.XS_CMD_QUERY_GET_STRING)));
+            assertEquals(base, this.replica.getCommandCount());
+            assertEquals(1, this.primary.getIndexRequestCount());
+
+            for (int i = 0; i < 5; i++) {
+                index.add(doc(i, "body" + i));
+            }
+            index.del("3");
+            assertEquals(6, this.primary.getIndexRequestCount());
+            assertEquals(5, this.replica.getIndexRequestCount());
+            assertEquals(1, this.replica.getRemoveCount());
+        }
+        xs.close();
+    }
+
+    @Test
+    void primaryConsistencyForwardsInBackground() throws Exception {
+        Xs xs = this.project(this.primary.getConn() + ";" + this.replica.getConn());
+        this.replica.setLatency(20);
+        String body = "x".repeat(2000);
+        try (XsIndex index = xs.borrowIndex()) {
+            index.setConsistency(XsIndex.CONSISTENCY_PRIMARY);
+            // 缓冲区多次提交并被重用，同步索引服务器稍后收到的仍须是提交时的数据
+            index.openBuffer(1);
+            for (int i = 0; i < 2000; i++) {
+                index.add(doc(i, body + i));
+            }
+            index.closeBuffer();
+        }
+        xs.close();
+        assertEquals(2000, this.primary.getIndexRequestCount());
+        assertEquals(2000, this.replica.getIndexRequestCount());
+    }
+}
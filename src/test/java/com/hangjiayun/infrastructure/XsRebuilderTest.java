@@ -0,0 +1,101 @@
+package com.hangjiayun.infrastructure;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XsRebuilderTest {
+    private XsStubServer stub;
+    private Xs xs;
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.stub = new XsStubServer();
+        this.xs = new Xs("project.name = test\nserver.index = " + this.stub.getConn() + "\n[id]\ntype = id\n[body]\ntype = body\n");
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.xs.close();
+        this.stub.close();
+    }
+
+    /**
+     * 按顺序生成文档的数据源
+     * @param total 文档数
+     * @param failAt 在生成该序号的文档时抛出异常，小于0表示不抛出
+     */
+    private static Iterator<XsDocument> source(int total, int failAt) {
+        return new Iterator<>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.next < total;
+            }
+
+            @Override
+            public XsDocument next() {
+                if (this.next == failAt) {
+                    throw new IllegalStateException("source failed at " + this.next);
+                }
+                return XsIndexTest.doc(this.next++, "body");
+            }
+        };
+    }
+
+    @Test
+    void rebuildSubmitsAllDocuments() {
+        XsRebuilder rebuilder = new XsRebuilder(this.xs, this.dir).setPartitions(3).setBatchSize(50);
+        assertEquals(1000, rebuilder.run(source(1000, -1)));
+        assertEquals(1000, this.stub.getIndexRequestCount());
+        assertFalse(rebuilder.isResumable());
+    }
+
+    @Test
+    void resumeSkipsConfirmedDocuments() {
+        XsRebuilder rebuilder = new XsRebuilder(this.xs, this.dir).setPartitions(3).setBatchSize(50);
+        assertThrows(IllegalStateException.class, () -> rebuilder.run(source(1000, 600)));
+        assertTrue(rebuilder.isResumable());
+        long first = this.stub.getIndexRequestCount();
+        assertEquals(600, first);
+
+        long submitted = rebuilder.run(source(1000, -1));
+        assertEquals(1000 - first, submitted);
+        assertEquals(1000, this.stub.getIndexRequestCount());
+        assertFalse(rebuilder.isResumable());
+    }
+
+    @Test
+    void resumeAfterRebuildEndedDeletesCheckpoints() {
+        XsRebuilder rebuilder = new XsRebuilder(this.xs, this.dir).setPartitions(2).setBatchSize(50);
+        assertThrows(IllegalStateException.class, () -> rebuilder.run(source(1001, 1000)));
+        // 模拟上次已完成重建但在删除检查点前崩溃
+        try (XsIndex index = this.xs.borrowIndex()) {
+            index.continueRebuild().endRebuild();
+        }
+        assertEquals(0, rebuilder.run(source(1000, -1)));
+        assertFalse(rebuilder.isResumable());
+        assertEquals(1000, this.stub.getIndexRequestCount());
+    }
+
+    @Test
+    void endRebuildErrorIsKeptWhenDocumentsWereSubmitted() {
+        XsRebuilder rebuilder = new XsRebuilder(this.xs, this.dir).setPartitions(2).setBatchSize(50);
+        assertThrows(IllegalStateException.class, () -> rebuilder.run(source(1000, 500)));
+        try (XsIndex index = this.xs.borrowIndex()) {
+            index.continueRebuild().stopRebuild();
+        }
+        XsException e = assertThrows(XsException.class, () -> rebuilder.run(source(1000, -1)));
+        assertEquals(XsCmd.XS_CMD_ERR_WRONGPLACE, e.getCode());
+        assertTrue(rebuilder.isResumable());
+    }
+}
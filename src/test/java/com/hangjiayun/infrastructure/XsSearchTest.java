@@ -0,0 +1,63 @@
+package com.hangjiayun.infrastructure;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XsSearchTest {
+    private XsStubServer stub;
+    private Xs xs;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.stub = new XsStubServer();
+        for (int i = 0; i < 15; i++) {
+            this.stub.addDocument(Map.of(0, String.valueOf(i), 1, "body" + i));
+        }
+        this.xs = new Xs("project.name = test\nproject.default_charset = GBK\nserver.search = " + this.stub.getConn()
+                + "\nserver.search.pool_max = 1\n[id]\ntype = id\n[body]\ntype = body\n");
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.xs.close();
+        this.stub.close();
+    }
+
+    @Test
+    void searchReturnsDocuments() {
+        try (XsSearch search = this.xs.borrowSearch()) {
+            List<XsDocument> docs = search.setQuery("body").setLimit(5, 10).search();
+            assertEquals(5, docs.size());
+            assertEquals("10", docs.get(0).getFields().get("id"));
+            assertEquals(15, search.getLastCount());
+        }
+        assertEquals(1, this.stub.getSearchCount());
+    }
+
+    @Test
+    void returnedConnectionKeepsProjectCharset() {
+        XsSearch search = this.xs.borrowSearch();
+        assertEquals("GBK", search.getCharset());
+        search.setCharset("UTF-8").setQuery("body").setLimit(3, 0);
+        search.close();
+        try (XsSearch again = this.xs.borrowSearch()) {
+            assertSame(search, again);
+            assertEquals("GBK", again.getCharset());
+            assertEquals(10, again.search().size());
+        }
+    }
+
+    @Test
+    void countReturnsSearchTotal() {
+        this.stub.setTotal(1000);
+        try (XsSearch search = this.xs.borrowSearch()) {
+            assertEquals(1000, search.count("body"));
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.hangjiayun.infrastructure;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XsServerTest {
+    private XsStubServer stub;
+    private Xs xs;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.stub = new XsStubServer();
+        this.xs = new Xs("project.name = test\nserver.index = " + this.stub.getConn() + "\n[id]\ntype = id\n[body]\ntype = body\n");
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.xs.close();
+        this.stub.close();
+    }
+
+    @Test
+    void respondSurvivesNextRead() {
+        try (XsServer server = new XsServer(this.stub.getConn(), this.xs)) {
+            XsCommand res = server.execCommand(new XsCommand(XsCmd.XS_CMD_INDEX_GET_DB), XsCmd.XS_CMD_OK_DB_INFO);
+            server.execCommand(new XsCommand(XsCmd.XS_CMD_INDEX_COMMIT), XsCmd.XS_CMD_OK_DB_COMMITED);
+            assertEquals("db", res.getBufString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void bufferedCommandsAreSentWithNextRequest() {
+        try (XsServer server = new XsServer(this.stub.getConn(), this.xs)) {
+            long base = this.stub.getCommandCount();
+            assertNull(server.execCommand(new XsCommand(XsCmd.XS_CMD_INDEX_REQUEST)));
+            server.execCommand(new XsCommand(XsCmd.XS_CMD_INDEX_SUBMIT), XsCmd.XS_CMD_OK_RQST_FINISHED);
+            assertEquals(2, this.stub.getCommandCount() - base);
+            assertEquals(1, this.stub.getIndexRequestCount());
+        }
+    }
+
+    @Test
+    void errorRespondThrows() {
+        try (XsServer server = new XsServer(this.stub.getConn(), this.xs)) {
+            XsException e = assertThrows(XsException.class, () -> server.execCommand(new XsCommand(XsCmd.XS_CMD_QUERY_GET_STRING)));
+            assertEquals(XsCmd.XS_CMD_ERR_UNIMP, e.getCode());
+            assertTrue(server.isConnected());
+        }
+    }
+
+    @Test
+    void closedConnectionIsReturnedOnce() {
+        XsServerPool<XsIndex> pool = this.xs.getIndexPool();
+        XsIndex index = this.xs.borrowIndex();
+        index.close();
+        index.close();
+        assertEquals(1, pool.getIdleSize());
+        assertTrue(index.isConnected());
+    }
+}
@@ -0,0 +1,64 @@
+package com.hangjiayun.infrastructure;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XsSpoolTest {
+    private XsStubServer stub;
+    private Xs xs;
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.stub = new XsStubServer();
+        this.xs = new Xs("project.name = test\n[id]\ntype = id\n[body]\ntype = body\n");
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.stub.close();
+    }
+
+    @Test
+    void confirmedRecordsAreTrimmed() {
+        try (XsSpool spool = new XsSpool(this.dir, 64 << 10); XsIndex index = new XsIndex(this.stub.getConn(), this.xs)) {
+            index.setSpool(spool).openBuffer(1);
+            for (int i = 0; i < 100; i++) {
+                index.add(XsIndexTest.doc(i, "body" + i));
+            }
+            assertFalse(spool.isEmpty());
+            index.closeBuffer();
+            assertTrue(spool.isEmpty());
+        }
+        assertEquals(100, this.stub.getIndexRequestCount());
+    }
+
+    @Test
+    void unconfirmedRecordsAreReplayed() {
+        XsSpool spool = new XsSpool(this.dir, 64 << 10);
+        XsIndex index = new XsIndex(this.stub.getConn(), this.xs);
+        index.setSpool(spool).openBuffer(1);
+        for (int i = 0; i < 10000; i++) {
+            index.add(XsIndexTest.doc(i, "body of document " + i));
+        }
+        long sent = this.stub.getIndexRequestCount();
+        assertTrue(sent < 10000);
+        // 模拟进程崩溃：不提交缓冲区直接放弃
+        spool.close();
+        index.close(true);
+
+        try (XsSpool reopened = new XsSpool(this.dir, 64 << 10); XsIndex again = new XsIndex(this.stub.getConn(), this.xs)) {
+            assertFalse(reopened.isEmpty());
+            again.setSpool(reopened);
+            assertTrue(reopened.isEmpty());
+        }
+        assertEquals(10000, this.stub.getIndexRequestCount());
+    }
+}
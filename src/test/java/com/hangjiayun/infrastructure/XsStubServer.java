@@ -0,0 +1,381 @@
+package com.hangjiayun.infrastructure;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 用于测试及性能测试的本地替身服务端
+ * 使用与客户端相同的封包格式，实现了客户端常用的指令：绑定项目、设置超时、搜索条件（无需响应的指令仅计数）、
+ * 获取搜索结果及数量、索引请求及批量索引（EXDATA）的确认、重建索引的状态等，并可以为每个响应注入固定的延迟
+ * 搜索结果为预先添加的文档，不会真正执行查询；同一连接上的指令按顺序逐个处理，与真实服务端一致
+ */
+public class XsStubServer implements AutoCloseable {
+    private final ServerSocketChannel server;
+    private final Set<SocketChannel> clients = ConcurrentHashMap.newKeySet();
+    /**
+     * 搜索结果文档，键为字段序号（vno），值为字段内容
+     */
+    private final List<Map<Integer, String>> documents = new CopyOnWriteArrayList<>();
+    private volatile int total = -1;
+    private volatile long latency = 0;
+    /**
+     * 是否处于重建索引状态
+     */
+    private volatile boolean rebuilding = false;
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong removes = new AtomicLong();
+
+    /**
+     * 在随机端口上启动
+     * @throws IOException 监听失败时
+     */
+    public XsStubServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * @param port 监听端口，0表示随机端口
+     * @throws IOException 监听失败时
+     */
+    public XsStubServer(int port) throws IOException {
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress("127.0.0.1", port), 128);
+        Thread acceptor = new Thread(this::accept, "xs-stub-" + this.getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * 以独立进程运行，用法：XsStubServer [端口] [延迟毫秒数]
+     */
+    public static void main(String[] args) throws Exception {
+        XsStubServer server = new XsStubServer(args.length > 0 ? Integer.parseInt(args[0]) : 8384);
+        server.setLatency(args.length > 1 ? Long.parseLong(args[1]) : 0);
+        for (int i = 0; i < 10; i++) {
+            server.addDocument(Map.of(0, String.valueOf(i), 1, "标题" + i, 2, "内容" + i));
+        }
+        System.out.println("Listening on " + server.getConn());
+        Thread.currentThread().join();
+    }
+
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) this.server.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            throw new XsException("Failed to get local address", e);
+        }
+    }
+
+    /**
+     * 获取可用于{@link XsServer}的连接字符串
+     * @return 如127.0.0.1:8384
+     */
+    public String getConn() {
+        return "127.0.0.1:" + this.getPort();
+    }
+
+    /**
+     * 设置每个响应前的延迟
+     * @param millis 毫秒数
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsStubServer setLatency(long millis) {
+        this.latency = millis;
+        return this;
+    }
+
+    /**
+     * 设置搜索返回的匹配总数
+     * @param total 匹配总数，小于0表示使用已添加的文档数
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsStubServer setTotal(int total) {
+        this.total = total;
+        return this;
+    }
+
+    /**
+     * 添加一个搜索结果文档
+     * @param fields 键为字段序号（vno），值为字段内容
+     * @return 返回自身对象以支持串接操作
+     */
+    public XsStubServer addDocument(Map<Integer, String> fields) {
+        this.documents.add(fields);
+        return this;
+    }
+
+    /**
+     * 获取收到的指令总数，包括EXDATA中的指令
+     * @return 指令数
+     */
+    public long getCommandCount() {
+        return this.commands.get();
+    }
+
+    public long getSearchCount() {
+        return this.searches.get();
+    }
+
+    /**
+     * 获取收到的索引请求数（XS_CMD_INDEX_REQUEST），包括EXDATA中的请求
+     * @return 请求数
+     */
+    public long getIndexRequestCount() {
+        return this.requests.get();
+    }
+
+    /**
+     * 获取收到的删除请求数（XS_CMD_INDEX_REMOVE），包括EXDATA中的请求
+     * @return 请求数
+     */
+    public long getRemoveCount() {
+        return this.removes.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.server.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        for (SocketChannel client : this.clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void accept() {
+        while (this.server.isOpen()) {
+            SocketChannel client;
+            try {
+                client = this.server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            this.clients.add(client);
+            Thread thread = new Thread(() -> this.serve(client), "xs-stub-conn");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        XsFrameDecoder decoder = new XsFrameDecoder(8192, false);
+        ArrayList<XsCommand> out = new ArrayList<>();
+        try {
+            while (true) {
+                XsCommand cmd;
+                while ((cmd = decoder.next()) != null) {
+                    if (cmd.cmd == XsCmd.XS_CMD_QUIT) {
+                        return;
+                    }
+                    this.handle(cmd, out);
+                    if (!out.isEmpty()) {
+                        this.reply(client, out);
+                    }
+                }
+                if (decoder.readFrom(client) < 0) {
+                    return;
+                }
+            }
+        } catch (IOException | XsException e) {
+            // 客户端断开或封包有误时关闭连接
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.clients.remove(client);
+            try {
+                client.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * 处理一条指令
+     * @param cmd 指令，其数据只在本次调用期间有效
+     * @param out 用于返回响应包，无需响应时不添加
+     */
+    private void handle(XsCommand cmd, List<XsCommand> out) {
+        this.commands.incrementAndGet();
+        switch (cmd.cmd) {
+            case XsCmd.XS_CMD_USE:
+                out.add(ok(XsCmd.XS_CMD_OK_PROJECT));
+                break;
+            case XsCmd.XS_CMD_TIMEOUT:
+                out.add(ok(XsCmd.XS_CMD_OK_TIMEOUT_SET));
+                break;
+            case XsCmd.XS_CMD_INDEX_REQUEST:
+                this.requests.incrementAndGet();
+                break;
+            case XsCmd.XS_CMD_INDEX_REMOVE:
+                this.removes.incrementAndGet();
+                out.add(ok(XsCmd.XS_CMD_OK_RQST_FINISHED));
+                break;
+            case XsCmd.XS_CMD_INDEX_EXDATA:
+                this.exdata(cmd.bufView());
+                out.add(ok(XsCmd.XS_CMD_OK_RQST_FINISHED));
+                break;
+            case XsCmd.XS_CMD_INDEX_SUBMIT:
+            case XsCmd.XS_CMD_INDEX_SYNONYMS:
+                out.add(ok(XsCmd.XS_CMD_OK_RQST_FINISHED));
+                break;
+            case XsCmd.XS_CMD_INDEX_USER_DICT:
+                out.add(cmd.arg1 == 1 ? ok(XsCmd.XS_CMD_OK_DICT_SAVED) : ok(XsCmd.XS_CMD_OK_INFO));
+                break;
+            case XsCmd.XS_CMD_INDEX_SET_DB:
+            case XsCmd.XS_CMD_SEARCH_ADD_DB:
+                out.add(ok(XsCmd.XS_CMD_OK_DB_CHANGED));
+                break;
+            case XsCmd.XS_CMD_INDEX_GET_DB:
+                out.add(ok(XsCmd.XS_CMD_OK_DB_INFO, "db"));
+                break;
+            case XsCmd.XS_CMD_INDEX_CLEAN_DB:
+                out.add(ok(XsCmd.XS_CMD_OK_DB_CLEAN));
+                break;
+            case XsCmd.XS_CMD_INDEX_COMMIT:
+                out.add(ok(XsCmd.XS_CMD_OK_DB_COMMITED));
+                break;
+            case XsCmd.XS_CMD_INDEX_REBUILD:
+                if (cmd.arg1 != 0 && !this.rebuilding) {
+                    out.add(error(XsCmd.XS_CMD_ERR_WRONGPLACE, "Not in rebuilding"));
+                } else {
+                    this.rebuilding = cmd.arg1 == 0;
+                    out.add(ok(XsCmd.XS_CMD_OK_DB_REBUILD));
+                }
+                break;
+            case XsCmd.XS_CMD_FLUSH_LOGGING:
+                out.add(ok(XsCmd.XS_CMD_OK_LOG_FLUSHED));
+                break;
+            case XsCmd.XS_CMD_SEARCH_ADD_LOG:
+                out.add(ok(XsCmd.XS_CMD_OK_LOGGED));
+                break;
+            case XsCmd.XS_CMD_SEARCH_DB_TOTAL:
+                out.add(ok(XsCmd.XS_CMD_OK_DB_TOTAL, this.documents.size()));
+                break;
+            case XsCmd.XS_CMD_SEARCH_GET_TOTAL:
+                out.add(ok(XsCmd.XS_CMD_OK_SEARCH_TOTAL, this.getTotal()));
+                break;
+            case XsCmd.XS_CMD_SEARCH_GET_RESULT:
+                this.searches.incrementAndGet();
+                this.result(cmd.buf1View(), out);
+                break;
+            default:
+                if ((cmd.cmd & 0x80) == 0) {
+                    out.add(error(XsCmd.XS_CMD_ERR_UNIMP, "Command not implemented: " + cmd.cmd));
+                }
+        }
+    }
+
+    /**
+     * 统计批量索引数据中的各个指令
+     * @param data EXDATA指令的数据内容
+     */
+    private void exdata(ByteBuffer data) {
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        while (data.remaining() >= XsCommand.HEADER_SIZE) {
+            int pos = data.position();
+            int cmd = data.get(pos) & 0xff;
+            int size = XsCommand.HEADER_SIZE + data.getInt(pos + 4) + (data.get(pos + 3) & 0xff);
+            if (size < XsCommand.HEADER_SIZE || size > data.remaining()) {
+                throw new XsException("Invalid EXDATA command at offset " + pos);
+            }
+            this.commands.incrementAndGet();
+            if (cmd == XsCmd.XS_CMD_INDEX_REQUEST) {
+                this.requests.incrementAndGet();
+            } else if (cmd == XsCmd.XS_CMD_INDEX_REMOVE) {
+                this.removes.incrementAndGet();
+            }
+            data.position(pos + size);
+        }
+    }
+
+    /**
+     * 生成搜索结果的响应包：OK_RESULT_BEGIN、每个文档的RESULT_DOC及RESULT_FIELD、OK_RESULT_END
+     * @param page 分页参数，依次为offset及limit
+     * @param out 用于返回响应包
+     */
+    private void result(ByteBuffer page, List<XsCommand> out) {
+        page.order(ByteOrder.LITTLE_ENDIAN);
+        int offset = page.remaining() >= 8 ? page.getInt() : 0;
+        int limit = page.remaining() >= 4 ? page.getInt() : 10;
+        out.add(ok(XsCmd.XS_CMD_OK_RESULT_BEGIN, this.getTotal()));
+        List<Map<Integer, String>> documents = this.documents;
+        for (int i = Math.max(0, offset); i < documents.size() && i < offset + limit; i++) {
+            ByteBuffer meta = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+            meta.putInt(i + 1).putInt(i - offset + 1).putInt(0).putInt(100).putFloat(1.0f).flip();
+            out.add(new XsCommand(XsCmd.XS_CMD_SEARCH_RESULT_DOC, 0, 0, meta));
+            for (Map.Entry<Integer, String> field : documents.get(i).entrySet()) {
+                XsCommand res = new XsCommand(XsCmd.XS_CMD_SEARCH_RESULT_FIELD, 0, 0,
+                        ByteBuffer.wrap(field.getValue().getBytes(StandardCharsets.UTF_8)));
+                res.setArg(field.getKey());
+                out.add(res);
+            }
+        }
+        out.add(ok(XsCmd.XS_CMD_OK_RESULT_END));
+    }
+
+    private int getTotal() {
+        return this.total >= 0 ? this.total : this.documents.size();
+    }
+
+    /**
+     * 延迟后发送全部响应包
+     */
+    private void reply(SocketChannel client, List<XsCommand> out) throws IOException, InterruptedException {
+        if (this.latency > 0) {
+            Thread.sleep(this.latency);
+        }
+        ByteBuffer[] bufs = new ByteBuffer[out.size()];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = out.get(i).toBytes();
+        }
+        out.clear();
+        while (bufs[bufs.length - 1].hasRemaining()) {
+            client.write(bufs);
+        }
+    }
+
+    private static XsCommand ok(int arg) {
+        XsCommand res = new XsCommand(XsCmd.XS_CMD_OK);
+        res.setArg(arg);
+        return res;
+    }
+
+    private static XsCommand ok(int arg, String buf) {
+        XsCommand res = ok(arg);
+        res.buf = ByteBuffer.wrap(buf.getBytes(StandardCharsets.UTF_8));
+        return res;
+    }
+
+    private static XsCommand ok(int arg, int value) {
+        XsCommand res = ok(arg);
+        res.buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).flip();
+        return res;
+    }
+
+    private static XsCommand error(int code, String message) {
+        XsCommand res = new XsCommand(XsCmd.XS_CMD_ERR, 0, 0, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+        res.setArg(code);
+        return res;
+    }
+}